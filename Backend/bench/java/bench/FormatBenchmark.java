@@ -0,0 +1,130 @@
+package bench;
+
+import entity.TodoView;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.JsonWriter;
+import util.TodoColumns;
+
+// Encode time of a todo list as the current JSON array and as the two
+// TodoColumns formats, without a database. The sizes (plain and gzipped) are
+// printed once per trial so both numbers come out of a single run:
+//   ant bench -Dbench.args="FormatBenchmark -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int rows;
+
+    private List<TodoView> todos;
+    private final Sink sink = new Sink();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        todos = new ArrayList<>(rows);
+        String[] priorities = TodoColumns.PRIORITIES;
+        long id = 1000;
+        for (int i = 0; i < rows; i++) {
+            // ids with small gaps, as left behind by deletes
+            id += 1 + (i % 7 == 0 ? 3 : 0);
+            todos.add(new TodoView(id, "Todo number " + i, i % 3 == 0 ? "" : "Some details about item " + i,
+                    priorities[i % 3], i % 4 == 0, 42L));
+        }
+        System.out.println();
+        System.out.println("rows=" + rows + " json=" + size(0) + " columns=" + size(1) + " binary=" + size(2));
+    }
+
+    private String size(int format) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        encode(format, plain);
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(zipped)) {
+            plain.writeTo(gz);
+        }
+        return plain.size() + "B (gzip " + zipped.size() + "B)";
+    }
+
+    private void encode(int format, OutputStream out) throws IOException {
+        if (format == 0) {
+            json(out);
+        } else if (format == 1) {
+            TodoColumns.writeColumnsJson(todos, out);
+        } else {
+            TodoColumns.writeBinary(todos, out);
+        }
+    }
+
+    // same shape as TodoServlet.writeTodo
+    private void json(OutputStream out) throws IOException {
+        JsonWriter w = JsonWriter.of(out).beginArray();
+        for (TodoView t : todos) {
+            w.beginObject()
+                    .name("id").value(t.getId())
+                    .name("text").value(t.getTitle())
+                    .name("title").value(t.getTitle())
+                    .name("description").value(t.getDescription())
+                    .name("priority").value(t.getPriority())
+                    .name("is_completed").value(t.isCompleted() ? 1 : 0)
+                    .name("user_id").value(t.getUserId())
+                    .endObject();
+        }
+        w.endArray().close();
+    }
+
+    @Benchmark
+    public long json() throws IOException {
+        sink.count = 0;
+        json(sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long columnsJson() throws IOException {
+        sink.count = 0;
+        TodoColumns.writeColumnsJson(todos, sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long binary() throws IOException {
+        sink.count = 0;
+        TodoColumns.writeBinary(todos, sink);
+        return sink.count;
+    }
+
+    // counts bytes, like a socket that is never slow
+    private static final class Sink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
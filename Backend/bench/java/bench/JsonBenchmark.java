@@ -0,0 +1,171 @@
+package bench;
+
+import entity.TodoView;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.JsonBody;
+import util.JsonWriter;
+
+// JSON in and out of the servlets against the code they replaced, without a
+// database. Writing: a list of todos through JsonWriter into the response
+// stream, and through the old per-todo string concatenation joined in a
+// StringBuilder and printed to getWriter(). Reading: a POST /api/todos body
+// through JsonBody, and through the old readRequestBody plus one
+// extractJsonString scan per key. Descriptions are plain text (the old
+// parser cannot skip an escaped quote), 2000 characters long by default:
+//   ant bench -Dbench.args="JsonBenchmark -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"2000", "20"})
+    public int descriptionLength;
+
+    @Param({"100"})
+    public int rows;
+
+    private List<TodoView> todos;
+    private byte[] postBody;
+    private final MockRequest req = new MockRequest();
+    private final MockResponse resp = new MockResponse();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder text = new StringBuilder(descriptionLength);
+        while (text.length() < descriptionLength) {
+            text.append("pick up the parcel from the post office before six, ");
+        }
+        String description = text.substring(0, descriptionLength);
+        todos = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            todos.add(new TodoView(1000L + i, "Todo number " + i, description, "MEDIUM", i % 4 == 0, 42L));
+        }
+        postBody = ("{\"title\":\"Todo number 1\",\"description\":\"" + description
+                + "\",\"priority\":\"HIGH\",\"user_id\":\"42\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long writeJsonWriter() throws IOException {
+        resp.reset(false);
+        // same shape as TodoServlet.writeTodo
+        JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginArray();
+        for (TodoView t : todos) {
+            String title = t.getTitle() != null ? t.getTitle() : "";
+            w.beginObject()
+                    .name("id").value(t.getId())
+                    .name("text").value(title)
+                    .name("title").value(title)
+                    .name("description").value(t.getDescription() != null ? t.getDescription() : "")
+                    .name("priority").value(t.getPriority() != null ? t.getPriority() : "MEDIUM")
+                    .name("is_completed").value(t.isCompleted() ? 1 : 0)
+                    .name("user_id").value(t.getUserId())
+                    .endObject();
+        }
+        w.endArray().close();
+        return resp.bytes();
+    }
+
+    @Benchmark
+    public long writeStringBuilder() {
+        resp.reset(false);
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int i = 0; i < todos.size(); i++) {
+            sb.append(oldTodoJson(todos.get(i)));
+            if (i < todos.size() - 1) sb.append(',');
+        }
+        sb.append(']');
+        try (PrintWriter out = resp.getWriter()) {
+            out.print(sb.toString());
+        }
+        return resp.bytes();
+    }
+
+    @Benchmark
+    public Map<String, String> readJsonBody() throws IOException {
+        req.set("POST", "/api/todos", null, postBody);
+        return JsonBody.read(req, JsonBody.DEFAULT_MAX_BYTES, "title", "text", "description", "priority", "user_id");
+    }
+
+    @Benchmark
+    public String readRegexScan() throws IOException {
+        req.set("POST", "/api/todos", null, postBody);
+        String body = oldReadRequestBody(req);
+        String title = oldExtractJsonString(body, "title");
+        if (title == null) title = oldExtractJsonString(body, "text");
+        String description = oldExtractJsonString(body, "description");
+        String priority = oldExtractJsonString(body, "priority");
+        String userId = oldExtractJsonString(body, "user_id");
+        return title + description + priority + userId;
+    }
+
+    // TodoServlet.todoJson and escape as they were before JsonWriter
+    private static String oldTodoJson(TodoView t) {
+        return "{\"id\":" + t.getId()
+                + ",\"text\":\"" + oldEscape(t.getTitle()) + "\""
+                + ",\"title\":\"" + oldEscape(t.getTitle()) + "\""
+                + ",\"description\":\"" + oldEscape(t.getDescription() != null ? t.getDescription() : "") + "\""
+                + ",\"priority\":\"" + oldEscape(t.getPriority() != null ? t.getPriority() : "MEDIUM") + "\""
+                + ",\"is_completed\":" + (t.isCompleted() ? 1 : 0)
+                + ",\"user_id\":" + (t.getUserId() != null ? t.getUserId() : "null") + "}";
+    }
+
+    private static String oldEscape(String s) {
+        if (s == null) return "";
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    // TodoServlet.readRequestBody and extractJsonString as they were before JsonBody
+    private static String oldReadRequestBody(MockRequest req) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        String line;
+        BufferedReader reader = req.getReader();
+        while ((line = reader.readLine()) != null) {
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    private static String oldExtractJsonString(String json, String key) {
+        if (json == null) return null;
+        int idx = json.indexOf("\"" + key + "\"");
+        if (idx == -1) return null;
+        int colon = json.indexOf(':', idx + key.length());
+        if (colon == -1) return null;
+        int start = colon + 1;
+        while (start < json.length() && Character.isWhitespace(json.charAt(start))) start++;
+        if (start >= json.length()) return null;
+        char c = json.charAt(start);
+        if (c == '"') {
+            start++;
+            int end = json.indexOf('"', start);
+            if (end == -1) return null;
+            return json.substring(start, end);
+        } else {
+            int end = start;
+            while (end < json.length() && ",}] ".indexOf(json.charAt(end)) == -1) end++;
+            return json.substring(start, end).trim();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+// The AsyncContext MockRequest hands out once async() is on. It never times
+// out by itself; complete() may be called once, from any thread, and fails
+// loudly when called twice so a test notices two owners of one response.
+final class MockAsyncContext implements AsyncContext {
+    private final ServletRequest request;
+    private final ServletResponse response;
+    private final List<AsyncListener> listeners = new CopyOnWriteArrayList<>();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private volatile long completedAt;
+
+    MockAsyncContext(ServletRequest request, ServletResponse response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    boolean isCompleted() {
+        return completed.getCount() == 0;
+    }
+
+    boolean awaitCompletion(long millis) throws InterruptedException {
+        return completed.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    // System.nanoTime() of complete()
+    long completedAt() {
+        return completedAt;
+    }
+
+    @Override
+    public synchronized void complete() {
+        if (isCompleted()) throw new IllegalStateException("completed twice");
+        completedAt = System.nanoTime();
+        completed.countDown();
+        for (AsyncListener l : listeners) {
+            try {
+                l.onComplete(new AsyncEvent(this, request, response));
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    @Override public ServletRequest getRequest() { return request; }
+    @Override public ServletResponse getResponse() { return response; }
+    @Override public boolean hasOriginalRequestAndResponse() { return true; }
+    @Override public void dispatch() { throw new UnsupportedOperationException(); }
+    @Override public void dispatch(String path) { throw new UnsupportedOperationException(); }
+    @Override public void dispatch(ServletContext context, String path) { throw new UnsupportedOperationException(); }
+    @Override public void start(Runnable run) { new Thread(run).start(); }
+    @Override public void addListener(AsyncListener listener) { listeners.add(listener); }
+    @Override public void addListener(AsyncListener listener, ServletRequest req, ServletResponse res) { listeners.add(listener); }
+    @Override public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+        try {
+            return clazz.newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new ServletException(ex);
+        }
+    }
+    @Override public void setTimeout(long timeout) {}
+    @Override public long getTimeout() { return 0; }
+}
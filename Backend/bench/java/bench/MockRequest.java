@@ -0,0 +1,176 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.Part;
+
+// Just enough of HttpServletRequest for the servlets to be called in-process.
+// One instance is reused across invocations (see set()) so the benchmarks
+// measure the servlet's allocations rather than the harness's. Async is
+// reported as unsupported, so AsyncServlet runs handlers on the calling thread,
+// unless async() turns it on (see MockAsyncContext).
+final class MockRequest implements HttpServletRequest {
+    private final Map<String, String> parameters = new HashMap<>();
+    private final Map<String, String> headers = new HashMap<>();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private String method;
+    private String pathInfo;
+    private String servletPath;
+    private byte[] body;
+    private String remoteAddr = "127.0.0.1";
+    private boolean asyncSupported;
+    private volatile MockAsyncContext asyncContext;
+
+    MockRequest set(String method, String servletPath, String pathInfo, byte[] body) {
+        this.method = method;
+        this.servletPath = servletPath;
+        this.pathInfo = pathInfo;
+        this.body = body;
+        parameters.clear();
+        headers.clear();
+        attributes.clear();
+        asyncContext = null;
+        return this;
+    }
+
+    // kept across set(); the request then goes through RequestExecutor like in a container
+    MockRequest async() {
+        asyncSupported = true;
+        return this;
+    }
+
+    MockAsyncContext asyncContext() {
+        return asyncContext;
+    }
+
+    MockRequest param(String name, String value) {
+        parameters.put(name, value);
+        return this;
+    }
+
+    // kept across set(), like a client's connection
+    MockRequest remote(String address) {
+        remoteAddr = address;
+        return this;
+    }
+
+    MockRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    @Override public String getMethod() { return method; }
+    @Override public String getPathInfo() { return pathInfo; }
+    @Override public String getServletPath() { return servletPath; }
+    @Override public String getContextPath() { return "/Backend"; }
+    @Override public String getRequestURI() { return "/Backend" + servletPath + (pathInfo != null ? pathInfo : ""); }
+    @Override public StringBuffer getRequestURL() { return new StringBuffer("http://localhost").append(getRequestURI()); }
+    @Override public String getQueryString() { return null; }
+    @Override public String getParameter(String name) { return parameters.get(name); }
+    @Override public String[] getParameterValues(String name) { String v = parameters.get(name); return v != null ? new String[] {v} : null; }
+    @Override public Enumeration<String> getParameterNames() { return Collections.enumeration(parameters.keySet()); }
+    @Override public Map<String, String[]> getParameterMap() {
+        Map<String, String[]> m = new HashMap<>();
+        for (Map.Entry<String, String> e : parameters.entrySet()) m.put(e.getKey(), new String[] {e.getValue()});
+        return m;
+    }
+    @Override public String getHeader(String name) { return headers.get(name); }
+    @Override public Enumeration<String> getHeaders(String name) {
+        String v = headers.get(name);
+        return Collections.enumeration(v != null ? Collections.singletonList(v) : Collections.<String>emptyList());
+    }
+    @Override public Enumeration<String> getHeaderNames() { return Collections.enumeration(headers.keySet()); }
+    @Override public int getIntHeader(String name) { String v = headers.get(name); return v != null ? Integer.parseInt(v) : -1; }
+    @Override public long getDateHeader(String name) { return -1; }
+    @Override public Object getAttribute(String name) { return attributes.get(name); }
+    @Override public Enumeration<String> getAttributeNames() { return Collections.enumeration(attributes.keySet()); }
+    @Override public void setAttribute(String name, Object o) { attributes.put(name, o); }
+    @Override public void removeAttribute(String name) { attributes.remove(name); }
+    @Override public String getCharacterEncoding() { return "UTF-8"; }
+    @Override public void setCharacterEncoding(String env) {}
+    @Override public int getContentLength() { return body != null ? body.length : -1; }
+    @Override public long getContentLengthLong() { return getContentLength(); }
+    @Override public String getContentType() { return body != null ? "application/json" : null; }
+
+    @Override
+    public ServletInputStream getInputStream() {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body != null ? body : new byte[0]);
+        return new ServletInputStream() {
+            @Override public int read() { return in.read(); }
+            @Override public int read(byte[] b, int off, int len) { return in.read(b, off, len); }
+            @Override public boolean isFinished() { return in.available() == 0; }
+            @Override public boolean isReady() { return true; }
+            @Override public void setReadListener(ReadListener readListener) {}
+        };
+    }
+
+    @Override public BufferedReader getReader() { return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8)); }
+    @Override public String getProtocol() { return "HTTP/1.1"; }
+    @Override public String getScheme() { return "http"; }
+    @Override public String getServerName() { return "localhost"; }
+    @Override public int getServerPort() { return 8080; }
+    @Override public String getRemoteAddr() { return remoteAddr; }
+    @Override public String getRemoteHost() { return "localhost"; }
+    @Override public int getRemotePort() { return 50000; }
+    @Override public String getLocalName() { return "localhost"; }
+    @Override public String getLocalAddr() { return "127.0.0.1"; }
+    @Override public int getLocalPort() { return 8080; }
+    @Override public Locale getLocale() { return Locale.ROOT; }
+    @Override public Enumeration<Locale> getLocales() { return Collections.enumeration(Collections.singletonList(Locale.ROOT)); }
+    @Override public boolean isSecure() { return false; }
+    @Override public RequestDispatcher getRequestDispatcher(String path) { return null; }
+    @Override @Deprecated public String getRealPath(String path) { return null; }
+    @Override public ServletContext getServletContext() { return null; }
+    @Override public AsyncContext startAsync() { throw new IllegalStateException("use startAsync(request, response)"); }
+    @Override public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+        if (!asyncSupported) throw new IllegalStateException("async not supported");
+        asyncContext = new MockAsyncContext(request, response);
+        return asyncContext;
+    }
+    @Override public boolean isAsyncStarted() { MockAsyncContext ctx = asyncContext; return ctx != null && !ctx.isCompleted(); }
+    @Override public boolean isAsyncSupported() { return asyncSupported; }
+    @Override public AsyncContext getAsyncContext() { return asyncContext; }
+    @Override public DispatcherType getDispatcherType() { return DispatcherType.REQUEST; }
+    @Override public String getAuthType() { return null; }
+    @Override public Cookie[] getCookies() { return null; }
+    @Override public String getPathTranslated() { return null; }
+    @Override public String getRemoteUser() { return null; }
+    @Override public boolean isUserInRole(String role) { return false; }
+    @Override public Principal getUserPrincipal() { return null; }
+    @Override public String getRequestedSessionId() { return null; }
+    @Override public HttpSession getSession(boolean create) { return null; }
+    @Override public HttpSession getSession() { return null; }
+    @Override public String changeSessionId() { throw new IllegalStateException("no session"); }
+    @Override public boolean isRequestedSessionIdValid() { return false; }
+    @Override public boolean isRequestedSessionIdFromCookie() { return false; }
+    @Override public boolean isRequestedSessionIdFromURL() { return false; }
+    @Override @Deprecated public boolean isRequestedSessionIdFromUrl() { return false; }
+    @Override public boolean authenticate(HttpServletResponse response) { return false; }
+    @Override public void login(String username, String password) {}
+    @Override public void logout() {}
+    @Override public Collection<Part> getParts() { return Collections.emptyList(); }
+    @Override public Part getPart(String name) { return null; }
+    @Override public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) { throw new UnsupportedOperationException(); }
+}
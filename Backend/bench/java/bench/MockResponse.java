@@ -0,0 +1,103 @@
+package bench;
+
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+// Response side of MockRequest: keeps status and headers, and counts the body
+// bytes instead of storing them. body() is only filled when capture is on,
+// which the benchmark setup uses to read ids out of responses.
+final class MockResponse implements HttpServletResponse {
+    private final Map<String, String> headers = new HashMap<>();
+    private final StringBuilder captured = new StringBuilder();
+    private boolean capture;
+    private int status;
+    private long bytes;
+    private String contentType;
+
+    private final ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+            bytes++;
+            if (capture) captured.append((char) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+            if (capture) captured.append(new String(b, off, len, StandardCharsets.UTF_8));
+        }
+
+        @Override public boolean isReady() { return true; }
+        @Override public void setWriteListener(WriteListener writeListener) {}
+    };
+
+    MockResponse reset(boolean capture) {
+        this.capture = capture;
+        captured.setLength(0);
+        headers.clear();
+        status = SC_OK;
+        bytes = 0;
+        contentType = null;
+        return this;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    String body() {
+        return captured.toString();
+    }
+
+    @Override public ServletOutputStream getOutputStream() { return out; }
+    @Override public PrintWriter getWriter() { return new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)); }
+    @Override public void setStatus(int sc) { status = sc; }
+    @Override @Deprecated public void setStatus(int sc, String sm) { status = sc; }
+    @Override public int getStatus() { return status; }
+    @Override public void sendError(int sc, String msg) { status = sc; }
+    @Override public void sendError(int sc) { status = sc; }
+    @Override public void sendRedirect(String location) { status = SC_FOUND; }
+    @Override public void setHeader(String name, String value) { headers.put(name, value); }
+    @Override public void addHeader(String name, String value) { headers.put(name, value); }
+    @Override public void setIntHeader(String name, int value) { headers.put(name, Integer.toString(value)); }
+    @Override public void addIntHeader(String name, int value) { setIntHeader(name, value); }
+    @Override public void setDateHeader(String name, long date) { headers.put(name, Long.toString(date)); }
+    @Override public void addDateHeader(String name, long date) { setDateHeader(name, date); }
+    @Override public boolean containsHeader(String name) { return headers.containsKey(name); }
+    @Override public String getHeader(String name) { return headers.get(name); }
+    @Override public Collection<String> getHeaders(String name) {
+        String v = headers.get(name);
+        return v != null ? Collections.singletonList(v) : Collections.<String>emptyList();
+    }
+    @Override public Collection<String> getHeaderNames() { return new ArrayList<>(headers.keySet()); }
+    @Override public void addCookie(Cookie cookie) {}
+    @Override public String encodeURL(String url) { return url; }
+    @Override public String encodeRedirectURL(String url) { return url; }
+    @Override @Deprecated public String encodeUrl(String url) { return url; }
+    @Override @Deprecated public String encodeRedirectUrl(String url) { return url; }
+    @Override public String getCharacterEncoding() { return "UTF-8"; }
+    @Override public String getContentType() { return contentType; }
+    @Override public void setCharacterEncoding(String charset) {}
+    @Override public void setContentLength(int len) {}
+    @Override public void setContentLengthLong(long len) {}
+    @Override public void setContentType(String type) { contentType = type; }
+    @Override public void setBufferSize(int size) {}
+    @Override public int getBufferSize() { return 8192; }
+    @Override public void flushBuffer() {}
+    @Override public void resetBuffer() { bytes = 0; captured.setLength(0); }
+    @Override public boolean isCommitted() { return false; }
+    @Override public void reset() { headers.clear(); resetBuffer(); status = SC_OK; }
+    @Override public void setLocale(Locale loc) {}
+    @Override public Locale getLocale() { return Locale.ROOT; }
+}
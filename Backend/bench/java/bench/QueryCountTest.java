@@ -0,0 +1,84 @@
+package bench;
+
+import controller.TodoServlet;
+import entity.Todo;
+import entity.User;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.stat.Statistics;
+import util.HibernateUtil;
+import util.Log;
+
+// Counts the SQL statements Hibernate prepares for one todo list request, on
+// an in-memory H2 database in MySQL mode: the list and a page of it must each
+// take exactly one statement whatever the number of todos, with no User (or
+// any other entity) loaded per row. The streamed list is left out, as
+// Hibernate does not count the statements of a stateless session's scroll.
+// Exits non-zero on the first failed check:
+//   ant bench-test
+public class QueryCountTest {
+    private static final int[] SIZES = {1, 50, 500};
+
+    private final TodoServlet todos = new TodoServlet();
+    private final MockRequest req = new MockRequest();
+    private final MockResponse resp = new MockResponse();
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("hibernate.connection.driver_class", "org.h2.Driver");
+        System.setProperty("hibernate.connection.url", "jdbc:h2:mem:querycount;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        System.setProperty("hibernate.connection.username", "sa");
+        System.setProperty("hibernate.connection.password", "");
+        System.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        System.setProperty("hibernate.hbm2ddl.auto", "create");
+        Log.configure("WARN", 0);
+        try {
+            QueryCountTest test = new QueryCountTest();
+            for (int size : SIZES) {
+                // a user of their own: no cached result or ETag carries over
+                String userId = String.valueOf(seed(size));
+                test.check(size, "list", userId, null, null);
+                test.check(Math.min(size, 20), "page", userId, "limit", "20");
+            }
+        } finally {
+            HibernateUtil.shutdown();
+        }
+        System.out.println("QueryCountTest passed");
+    }
+
+    private void check(int expected, String name, String userId, String param, String value) throws Exception {
+        req.set("GET", "/api/todos", null, null).param("user_id", userId);
+        if (param != null) req.param(param, value);
+        Statistics stats = HibernateUtil.getSessionFactory().getStatistics();
+        stats.clear();
+        todos.service(req, resp.reset(true));
+
+        String what = name + " of " + expected + " todos";
+        check(resp.getStatus() == 200, what + ": status " + resp.getStatus());
+        int rows = resp.body().split("\"user_id\"", -1).length - 1;
+        check(rows == expected, what + ": " + rows + " todos in the response");
+        check(stats.getPrepareStatementCount() == 1, what + ": " + stats.getPrepareStatementCount() + " SQL statements");
+        check(stats.getEntityLoadCount() == 0, what + ": " + stats.getEntityLoadCount() + " entities loaded");
+    }
+
+    private static long seed(int count) {
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            Transaction tx = session.beginTransaction();
+            User owner = new User("count" + count, "unused", "count" + count + "@example.com");
+            session.save(owner);
+            for (int i = 0; i < count; i++) {
+                Todo t = new Todo("todo " + i, "seeded description number " + i, "LOW");
+                t.setUser(owner);
+                session.save(t);
+            }
+            tx.commit();
+            return owner.getId();
+        } finally {
+            session.close();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
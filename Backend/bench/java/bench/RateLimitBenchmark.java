@@ -0,0 +1,91 @@
+package bench;
+
+import controller.AddressLimitFilter;
+import controller.RateLimitFilter;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of AddressLimitFilter and RateLimitFilter, chained as in web.xml, in
+// front of a chain that does nothing, on four threads: each thread its own client (the common case), or all of them one
+// client contending for the same bucket and in-flight counter. The limits are
+// raised so every request is admitted and the whole path is measured:
+//   ant bench -Dbench.args="RateLimitBenchmark"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RateLimitBenchmark {
+    private static final AtomicInteger clients = new AtomicInteger();
+    private static final FilterChain NOTHING = (req, res) -> {};
+
+    private final AddressLimitFilter addressFilter = new AddressLimitFilter();
+    private final RateLimitFilter filter = new RateLimitFilter();
+    private final FilterChain limit = (req, res) -> filter.doFilter(req, res, NOTHING);
+
+    @State(Scope.Thread)
+    public static class Client {
+        final MockRequest req = new MockRequest();
+        final MockResponse resp = new MockResponse();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            req.set("GET", "/api/todos", null, null).remote("10.0.0." + clients.incrementAndGet());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SharedClient {
+        final MockRequest req = new MockRequest();
+        final MockResponse resp = new MockResponse();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            req.set("GET", "/api/todos", null, null).remote("10.0.1.1");
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // read by the filter's init ahead of web.xml, as in a deployment
+        System.setProperty("todo.rateLimit.read.perSecond", "1e9");
+        System.setProperty("todo.rateLimit.address.perSecond", "1e9");
+        System.setProperty("todo.rateLimit.maxInFlight", "1000");
+        ServletContext ctx = (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {ServletContext.class}, (p, m, a) -> null);
+        FilterConfig config = (FilterConfig) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {FilterConfig.class}, (p, m, a) -> "getServletContext".equals(m.getName()) ? ctx : null);
+        addressFilter.init(config);
+        filter.init(config);
+    }
+
+    @Benchmark
+    public int perClient(Client c) throws Exception {
+        addressFilter.doFilter(c.req, c.resp.reset(false), limit);
+        return c.resp.getStatus();
+    }
+
+    @Benchmark
+    public int sharedClient(SharedClient c) throws Exception {
+        addressFilter.doFilter(c.req, c.resp.reset(false), limit);
+        return c.resp.getStatus();
+    }
+}
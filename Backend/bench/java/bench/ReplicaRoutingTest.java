@@ -0,0 +1,148 @@
+package bench;
+
+import controller.TodoServlet;
+import controller.UserServlet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpServlet;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import util.HibernateUtil;
+import util.Log;
+import util.PooledConnectionProvider;
+
+// Read replica routing on three in-memory H2 databases in MySQL mode, a
+// primary and two replicas. Replication is not simulated: each replica holds
+// one user named after it and nothing else, so a response shows which
+// database answered it. Checks that
+//  - reads go to the primary while no replica is up, and a replica that
+//    never comes up is never read from;
+//  - once replicas are up, reads are spread over them;
+//  - a collection written within stickyMillis is read from the primary, so
+//    the writer sees its write, while other collections stay on replicas;
+//  - after the window the collection is read from a replica again.
+// Exits non-zero on the first failed check:
+//   ant bench-test
+public class ReplicaRoutingTest {
+    private static final String PRIMARY = "jdbc:h2:mem:primary;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private static final String REPLICA_1 = "jdbc:h2:mem:replica1;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private static final String REPLICA_2 = "jdbc:h2:mem:replica2;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    // never comes up: H2 refuses to create it
+    private static final String DOWN = "jdbc:h2:mem:down;MODE=MySQL;IFEXISTS=TRUE";
+    private static final int STICKY_MILLIS = 300;
+
+    private static final UserServlet users = new UserServlet();
+    private static final TodoServlet todos = new TodoServlet();
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("hibernate.connection.driver_class", "org.h2.Driver");
+        System.setProperty("hibernate.connection.url", PRIMARY);
+        System.setProperty("hibernate.connection.username", "sa");
+        System.setProperty("hibernate.connection.password", "");
+        System.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        System.setProperty("hibernate.hbm2ddl.auto", "create");
+        // a replica that is down logs a warning on every retry
+        Log.configure("ERROR", 0);
+        replica(REPLICA_1, "replica-1");
+        replica(REPLICA_2, "replica-2");
+
+        // replicas are built in order and the one that is down holds up the
+        // others for the pool's checkoutTimeout (5 s), during which every read
+        // has to fall back to the primary
+        HibernateUtil.configureReplicas(Arrays.asList(DOWN, REPLICA_1, REPLICA_2), STICKY_MILLIS);
+        HibernateUtil.buildAsync(null);
+        for (int i = 0; i < 200 && !HibernateUtil.isReady(); i++) {
+            Thread.sleep(50);
+        }
+        check(HibernateUtil.isReady(), "primary not ready");
+        String created = call(users, "POST", "/api/users", null, "{\"username\":\"primary\",\"email\":\"p@example.com\",\"password\":\"secret\"}");
+        String userId = created.replaceAll("(?s).*\"id\":(\\d+).*", "$1");
+        Thread.sleep(STICKY_MILLIS + 100);
+        check(metric("db_replicas_ready") == 0, "a replica came up too early to test the fallback");
+        check("primary".equals(database(call(users, "GET", "/api/users", null, null))), "not read from the primary with no replica up");
+        check(metric("db_reads_replica") == 0, "a read went to a replica that is not up");
+
+        for (int i = 0; i < 400 && metric("db_replicas_ready") < 2; i++) {
+            Thread.sleep(50);
+        }
+        check(metric("db_replicas_ready") == 2, metric("db_replicas_ready") + " replicas ready, expected 2");
+
+        Set<String> answered = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            answered.add(database(call(users, "GET", "/api/users", null, null)));
+        }
+        check(answered.equals(new HashSet<>(Arrays.asList("replica-1", "replica-2"))), "user reads answered by " + answered);
+
+        // a todo written: that user's list comes from the primary and shows it...
+        long sticky = metric("db_reads_primary_sticky");
+        call(todos, "POST", "/api/todos", null, "{\"title\":\"written to the primary\",\"user_id\":\"" + userId + "\"}");
+        check(call(todos, "GET", "/api/todos", null, null, "user_id", userId).contains("written to the primary"), "own write not read back");
+        check(metric("db_reads_primary_sticky") == sticky + 1, "read after write not kept on the primary");
+        // ...while the user list, not written, is still read from a replica
+        check(database(call(users, "GET", "/api/users", null, null)).startsWith("replica-"), "unrelated collection pinned to the primary");
+
+        // past the window the list is read from a replica, which has no todos
+        Thread.sleep(STICKY_MILLIS + 100);
+        check("[]".equals(call(todos, "GET", "/api/todos", null, null, "user_id", userId)), "list not read from a replica after the window");
+        check(metric("db_reads_primary_sticky") == sticky + 1, "read kept on the primary after the window");
+
+        System.out.println("ReplicaRoutingTest passed");
+        // the builder is still retrying the replica that is down
+        HibernateUtil.shutdown();
+        System.exit(0);
+    }
+
+    // schema plus one user named after the replica, written directly
+    private static void replica(String url, String name) {
+        Configuration c = new Configuration().configure();
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("hibernate.")) c.setProperty(key, System.getProperty(key));
+        }
+        c.setProperty("hibernate.connection.url", url);
+        c.setProperty("hibernate.cache.use_second_level_cache", "false");
+        c.setProperty("hibernate.cache.use_query_cache", "false");
+        c.setProperty("hibernate.cache.region.factory_class", "org.hibernate.cache.internal.NoCachingRegionFactory");
+        c.setProperty(PooledConnectionProvider.REPLICA, "true");
+        SessionFactory sf = c.buildSessionFactory();
+        try {
+            Session s = sf.openSession();
+            s.beginTransaction();
+            s.createSQLQuery("insert into users (id, username, email, password) values (1, :name, :name, 'unused')")
+                    .setParameter("name", name).executeUpdate();
+            s.getTransaction().commit();
+            s.close();
+        } finally {
+            sf.close();
+        }
+    }
+
+    // which database a GET /api/users was answered from
+    private static String database(String body) {
+        if (body.contains("\"replica-1\"")) return "replica-1";
+        if (body.contains("\"replica-2\"")) return "replica-2";
+        return "primary";
+    }
+
+    private static String call(HttpServlet servlet, String method, String path, String info, String body, String... params) throws Exception {
+        MockRequest req = new MockRequest().set(method, path, info, body != null ? body.getBytes("UTF-8") : null);
+        for (int i = 0; i < params.length; i += 2) {
+            req.param(params[i], params[i + 1]);
+        }
+        MockResponse resp = new MockResponse().reset(true);
+        servlet.service(req, resp);
+        check(resp.getStatus() < 300, method + " " + path + ": " + resp.getStatus() + " " + resp.body());
+        return resp.body();
+    }
+
+    private static long metric(String name) {
+        Map<String, Number> m = HibernateUtil.getReplicaMetrics();
+        return m.get(name).longValue();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
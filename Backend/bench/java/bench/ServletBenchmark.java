@@ -0,0 +1,238 @@
+package bench;
+
+import controller.CategoryServlet;
+import controller.TodoServlet;
+import controller.UserServlet;
+import entity.Todo;
+import entity.User;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServlet;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.AuthToken;
+import util.CompletionBuffer;
+import util.HibernateUtil;
+import util.Log;
+import util.SearchIndex;
+
+// Drives the servlets in-process against an in-memory H2 database in MySQL
+// mode, so no MySQL server is needed. Each listSize gets its own forked JVM
+// with one user owning that many todos. Run with `ant bench` (see README);
+// the default arguments add -prof gc for the allocation rate per operation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServletBenchmark {
+    private static final Pattern ID = Pattern.compile("\"id\":(\\d+)");
+    private static final String EMAIL = "bench@example.com";
+    private static final String PASSWORD = "bench-password";
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int listSize;
+
+    private final TodoServlet todos = new TodoServlet();
+    private final UserServlet users = new UserServlet();
+    private final CategoryServlet categories = new CategoryServlet();
+    private final MockRequest req = new MockRequest();
+    private final MockResponse resp = new MockResponse();
+
+    private String userId;
+    private String toggleId;
+    private boolean completed;
+    private byte[] createBody;
+    private byte[] authBody;
+    private byte[] completeBody;
+    private byte[] reopenBody;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // read by HibernateUtil before it builds the SessionFactory
+        System.setProperty("hibernate.connection.driver_class", "org.h2.Driver");
+        System.setProperty("hibernate.connection.url", "jdbc:h2:mem:bench;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        System.setProperty("hibernate.connection.username", "sa");
+        System.setProperty("hibernate.connection.password", "");
+        System.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        System.setProperty("hibernate.hbm2ddl.auto", "create");
+        Log.configure("WARN", 0);
+        // done by AppLifecycleListener in a deployment; login needs it to issue tokens
+        AuthToken.configure("benchmark-secret-benchmark-secret-0123456789", 12);
+
+        call(users, "POST", "/api/users", null,
+                "{\"username\":\"bench\",\"email\":\"" + EMAIL + "\",\"password\":\"" + PASSWORD + "\"}", true);
+        userId = id(resp.body());
+        for (int i = 0; i < 10; i++) {
+            req.set("POST", "/api/categories", null, null).param("name", "category " + i).param("userId", userId);
+            categories.service(req, resp.reset(false));
+        }
+        seed(Long.parseLong(userId), listSize);
+        SearchIndex.build();
+
+        call(todos, "POST", "/api/todos", null, "{\"title\":\"toggle me\",\"user_id\":\"" + userId + "\"}", true);
+        toggleId = "/" + id(resp.body());
+        createBody = utf8("{\"title\":\"created by the benchmark\",\"description\":\"a short description\",\"priority\":\"HIGH\",\"user_id\":\"" + userId + "\"}");
+        authBody = utf8("{\"email\":\"" + EMAIL + "\",\"password\":\"" + PASSWORD + "\"}");
+        completeBody = utf8("{\"is_completed\":true}");
+        reopenBody = utf8("{\"is_completed\":false}");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        HibernateUtil.shutdown();
+    }
+
+    // plain inserts; going through POST /api/todos for 100k rows would dominate the setup time
+    private static void seed(long userId, int count) {
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            Transaction tx = session.beginTransaction();
+            User owner = (User) session.load(User.class, userId);
+            String[] priorities = {"LOW", "MEDIUM", "HIGH"};
+            for (int i = 0; i < count; i++) {
+                Todo t = new Todo("todo " + i, "seeded description number " + i, priorities[i % 3]);
+                t.setUser(owner);
+                t.setCompleted(i % 4 == 0);
+                session.save(t);
+                if (i % 1000 == 999) {
+                    session.flush();
+                    session.clear();
+                    owner = (User) session.load(User.class, userId);
+                }
+            }
+            tx.commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    @Benchmark
+    public long listTodos() throws Exception {
+        req.set("GET", "/api/todos", null, null).param("user_id", userId);
+        todos.service(req, resp.reset(false));
+        return resp.bytes();
+    }
+
+    @Benchmark
+    public long streamTodos() throws Exception {
+        req.set("GET", "/api/todos", null, null).param("user_id", userId).param("stream", "true");
+        todos.service(req, resp.reset(false));
+        return resp.bytes();
+    }
+
+    @Benchmark
+    public long firstPage() throws Exception {
+        req.set("GET", "/api/todos", null, null).param("user_id", userId).param("limit", "50");
+        todos.service(req, resp.reset(false));
+        return resp.bytes();
+    }
+
+    @Benchmark
+    public long listCategories() throws Exception {
+        req.set("GET", "/api/categories", null, null);
+        categories.service(req, resp.reset(false));
+        return resp.bytes();
+    }
+
+    @Benchmark
+    public int createTodo() throws Exception {
+        req.set("POST", "/api/todos", null, createBody);
+        todos.service(req, resp.reset(false));
+        return ok();
+    }
+
+    @Benchmark
+    public int toggleComplete() throws Exception {
+        completed = !completed;
+        req.set("PUT", "/api/todos", toggleId, completed ? completeBody : reopenBody);
+        todos.service(req, resp.reset(false));
+        return ok();
+    }
+
+    // toggleComplete with todo.writeBehind.flushMillis=5: the request only reads the row
+    @State(Scope.Benchmark)
+    public static class WriteBehind {
+        @Setup(Level.Trial)
+        public void start() {
+            CompletionBuffer.start(5, 10000);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            CompletionBuffer.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int toggleCompleteBehind(WriteBehind writeBehind) throws Exception {
+        return toggleComplete();
+    }
+
+    // deleteTodo needs a fresh row per call; the insert happens in setup, outside the timing
+    @State(Scope.Benchmark)
+    public static class Doomed {
+        String path;
+
+        @Setup(Level.Invocation)
+        public void create(ServletBenchmark b) throws Exception {
+            b.call(b.todos, "POST", "/api/todos", null, "{\"title\":\"delete me\",\"user_id\":\"" + b.userId + "\"}", true);
+            path = "/" + id(b.resp.body());
+        }
+    }
+
+    @Benchmark
+    public int deleteTodo(Doomed doomed) throws Exception {
+        req.set("DELETE", "/api/todos", doomed.path, null);
+        todos.service(req, resp.reset(false));
+        return ok();
+    }
+
+    // after the first call this is the AuthCache hit path plus token issue
+    @Benchmark
+    public int auth() throws Exception {
+        req.set("POST", "/api/users", "/auth", authBody);
+        users.service(req, resp.reset(false));
+        return ok();
+    }
+
+    // a failing endpoint would otherwise show up as a suspiciously fast one
+    private int ok() {
+        if (resp.getStatus() >= 400) throw new IllegalStateException("answered " + resp.getStatus());
+        return resp.getStatus();
+    }
+
+    private void call(HttpServlet servlet, String method, String servletPath, String pathInfo, String body, boolean capture) throws Exception {
+        req.set(method, servletPath, pathInfo, body != null ? utf8(body) : null);
+        servlet.service(req, resp.reset(capture));
+        if (resp.getStatus() >= 400) {
+            throw new IllegalStateException(method + " " + servletPath + " answered " + resp.getStatus() + ": " + resp.body());
+        }
+    }
+
+    private static String id(String json) {
+        Matcher m = ID.matcher(json);
+        if (!m.find()) throw new IllegalStateException("no id in " + json);
+        return m.group(1);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,257 @@
+package bench;
+
+import controller.AsyncServlet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.Log;
+import util.RequestExecutor;
+
+// Load test for AsyncServlet on RequestExecutor, no database needed: a burst
+// of slow requests must leave at most maxConcurrent handlers running and
+// queueSize waiting, and shed the rest at once with 503 and Retry-After; a
+// handler past the timeout must be interrupted and answer 503 itself (unless
+// it finishes anyway, then its answer stands), and a request still queued at
+// the timeout must be answered without running.
+// Then reports the requests per second of the same slow handler run by
+// AsyncServlet and by a plain synchronous doGet, both behind a small
+// container-style thread pool. Exits non-zero on the first failed check:
+//   ant bench-test
+public class SheddingLoadTest {
+    private static final int MAX_CONCURRENT = 4;
+    private static final int QUEUE_SIZE = 8;
+    private static final int BURST = 40;
+
+    // throughput run: container threads, closed-loop clients, handler sleep
+    private static final int CONTAINER_THREADS = 16;
+    private static final int CLIENTS = 128;
+    private static final String HANDLER_MILLIS = "20";
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        Log.configure("WARN", 0);
+        burstIsShed();
+        timeoutsAnswerOnce();
+        lateAnswerStands();
+        double sync = throughput(false);
+        double async = throughput(true);
+        System.out.printf("slow handler (%s ms), %d clients, %d container threads: sync doGet %.0f req/s, AsyncServlet %.0f req/s%n",
+                HANDLER_MILLIS, CLIENTS, CONTAINER_THREADS, sync, async);
+        System.out.println("SheddingLoadTest passed");
+        System.exit(0);
+    }
+
+    private static void burstIsShed() throws Exception {
+        RequestExecutor.start(MAX_CONCURRENT, QUEUE_SIZE, 10000, true);
+        SlowServlet servlet = new SlowServlet();
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Call> calls = new ArrayList<>();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < BURST; i++) {
+            final Call c = new Call("200");
+            calls.add(c);
+            Thread t = new Thread(() -> {
+                try {
+                    go.await();
+                    long start = System.nanoTime();
+                    servlet.service(c.req, c.resp);
+                    c.serviceNanos = System.nanoTime() - start;
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+            t.start();
+            clients.add(t);
+        }
+        go.countDown();
+        for (Thread t : clients) {
+            t.join();
+        }
+        // every admitted request is waiting or running by now
+        Number queued = RequestExecutor.get().metrics().get("executor_queued");
+        check(queued.intValue() == QUEUE_SIZE, "queued " + queued + ", expected " + QUEUE_SIZE);
+
+        int ok = 0;
+        int shed = 0;
+        for (Call c : calls) {
+            check(c.req.asyncContext().awaitCompletion(10000), "request never completed");
+            if (c.resp.getStatus() == 200) {
+                ok++;
+            } else {
+                check(c.resp.getStatus() == 503, "status " + c.resp.getStatus());
+                check("1".equals(c.resp.getHeader("Retry-After")), "503 without Retry-After");
+                check(c.resp.body().contains("server busy"), c.resp.body());
+                // shed on the calling thread, not after waiting for a slot
+                check(c.serviceNanos < TimeUnit.MILLISECONDS.toNanos(100), "shedding took " + c.serviceNanos / 1_000_000 + " ms");
+                shed++;
+            }
+        }
+        check(ok == MAX_CONCURRENT + QUEUE_SIZE, ok + " requests served, expected " + (MAX_CONCURRENT + QUEUE_SIZE));
+        check(shed == BURST - ok, shed + " requests shed");
+        check(servlet.maxRunning.get() == MAX_CONCURRENT, "up to " + servlet.maxRunning + " handlers ran at once, limit " + MAX_CONCURRENT);
+        RequestExecutor.shutdown();
+    }
+
+    private static void timeoutsAnswerOnce() throws Exception {
+        RequestExecutor.start(1, 1, 200, true);
+        SlowServlet servlet = new SlowServlet();
+        Call running = new Call("10000");
+        Call queued = new Call("10");
+        servlet.service(running.req, running.resp);
+        servlet.service(queued.req, queued.resp);
+
+        check(queued.req.asyncContext().awaitCompletion(2000), "queued request not answered at the timeout");
+        check(queued.resp.getStatus() == 503 && queued.resp.body().contains("timed out"), queued.resp.body());
+        check(running.req.asyncContext().awaitCompletion(2000), "running request not answered after the timeout");
+        check(running.resp.getStatus() == 503 && running.resp.body().contains("timed out"), running.resp.body());
+        // answered only once the handler had let go of the response
+        Long stopped = servlet.stoppedAt.get(running.req);
+        check(stopped != null, "handler was not interrupted");
+        check(running.req.asyncContext().completedAt() - stopped >= 0, "completed while the handler was still running");
+        Thread.sleep(100);
+        check(servlet.started.get() == 1, servlet.started + " handlers started, the queued one should not have");
+        RequestExecutor.shutdown();
+    }
+
+    private static void lateAnswerStands() throws Exception {
+        RequestExecutor.start(1, 1, 200, true);
+        SlowServlet servlet = new SlowServlet();
+        Call late = new Call("400");
+        late.req.param("uninterruptible", "true");
+        servlet.service(late.req, late.resp);
+
+        check(late.req.asyncContext().awaitCompletion(2000), "late request never completed");
+        check(late.resp.getStatus() == 200 && late.resp.body().contains("\"ok\""),
+                "a handler that finished past the deadline got " + late.resp.getStatus() + " " + late.resp.body());
+        RequestExecutor.shutdown();
+    }
+
+    // closed loop: each client sends its next request once the last one is
+    // answered; the container pool runs service() as a servlet container would
+    private static double throughput(final boolean async) throws Exception {
+        if (async) RequestExecutor.start(64, 256, 10000, true);
+        final HttpServlet servlet = async ? new SlowServlet() : new SyncSlowServlet();
+        final ExecutorService container = Executors.newFixedThreadPool(CONTAINER_THREADS);
+        final AtomicLong answered = new AtomicLong();
+        final AtomicInteger failed = new AtomicInteger();
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        final MockRequest req = async ? new MockRequest().async() : new MockRequest();
+                        final MockResponse resp = new MockResponse().reset(true);
+                        req.set("GET", "/api/slow", null, null).param("sleep", HANDLER_MILLIS);
+                        Future<?> dispatched = container.submit(() -> {
+                            servlet.service(req, resp);
+                            return null;
+                        });
+                        dispatched.get();
+                        if (async && !req.asyncContext().awaitCompletion(10000)) failed.incrementAndGet();
+                        if (resp.getStatus() == 200) {
+                            answered.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    }
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+            t.start();
+            clients.add(t);
+        }
+        long start = System.nanoTime();
+        for (Thread t : clients) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        container.shutdown();
+        if (async) RequestExecutor.shutdown();
+        check(failed.get() == 0, failed + " requests failed in the " + (async ? "async" : "sync") + " throughput run");
+        return answered.get() / seconds;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    private static final class Call {
+        final MockRequest req = new MockRequest().async();
+        final MockResponse resp = new MockResponse().reset(true);
+        volatile long serviceNanos;
+
+        Call(String sleepMillis) {
+            req.set("GET", "/api/slow", null, null).param("sleep", sleepMillis);
+        }
+    }
+
+    // stands in for a handler blocked on the database: an interrupt ends it
+    // with an exception, as it would a JDBC call, unless uninterruptible is set
+    private static final class SlowServlet extends AsyncServlet {
+        private static final long serialVersionUID = 1L;
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger started = new AtomicInteger();
+        final ConcurrentHashMap<HttpServletRequest, Long> stoppedAt = new ConcurrentHashMap<>();
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            started.incrementAndGet();
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            try {
+                sleep(req, resp);
+            } catch (InterruptedException ex) {
+                stoppedAt.put(req, System.nanoTime());
+                throw new InterruptedIOException("interrupted");
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    // the same handler on the container thread
+    private static final class SyncSlowServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            try {
+                sleep(req, resp);
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("interrupted");
+            }
+        }
+    }
+
+    private static void sleep(HttpServletRequest req, HttpServletResponse resp) throws IOException, InterruptedException {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(req.getParameter("sleep")));
+        if ("true".equals(req.getParameter("uninterruptible"))) {
+            for (long left; (left = until - System.nanoTime()) > 0; ) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(left);
+                } catch (InterruptedException ex) {
+                    // keeps going, like a handler stuck in a call that ignores interrupts
+                }
+            }
+        } else {
+            TimeUnit.NANOSECONDS.sleep(until - System.nanoTime());
+        }
+        resp.getOutputStream().print("{\"ok\":true}");
+    }
+}
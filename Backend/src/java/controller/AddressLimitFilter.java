@@ -0,0 +1,64 @@
+package controller;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.TokenBuckets;
+
+// The per-address rate limit, one token bucket per remote address over all
+// routes. Mapped ahead of AuthFilter so that requests AuthFilter turns away
+// with 401 take a token too: a single host cannot spray guessed tokens any
+// faster than todo.rateLimit.address.perSecond. The per-client limits need
+// the verified user and stay in RateLimitFilter, after AuthFilter. Exempt
+// routes and the 429 answer are the same as there.
+public class AddressLimitFilter implements Filter {
+    private static final LongAdder limited = new LongAdder();
+    private static volatile AddressLimitFilter active;
+
+    private TokenBuckets address;
+
+    public void init(FilterConfig filterConfig) {
+        ServletContext ctx = filterConfig.getServletContext();
+        address = RateLimitFilter.buckets(ctx, "address", 200, 400,
+                AppLifecycleListener.intParam(ctx, "todo.rateLimit.maxClients", 100000));
+        active = this;
+    }
+
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        if (address != null && !RateLimitFilter.isExempt(request.getMethod(), request.getRequestURI(), request.getContextPath().length())) {
+            long wait = address.take(request.getRemoteAddr(), System.nanoTime());
+            if (wait > 0) {
+                limited.increment();
+                RateLimitFilter.tooManyRequests((HttpServletResponse) res, wait, "rate limit exceeded");
+                return;
+            }
+        }
+        chain.doFilter(req, res);
+    }
+
+    public static Map<String, Number> metrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("ratelimit_address_limited", limited.sum());
+        AddressLimitFilter f = active;
+        if (f != null) {
+            m.put("ratelimit_addresses_tracked", f.address != null ? f.address.size() : 0);
+        }
+        return m;
+    }
+
+    public void destroy() {
+        if (active == this) active = null;
+    }
+}
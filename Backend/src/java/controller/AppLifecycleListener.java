@@ -0,0 +1,104 @@
+package controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import util.AuthToken;
+import util.ChangeFeed;
+import util.CompletionBuffer;
+import util.HibernateUtil;
+import util.Log;
+import util.PasswordHasher;
+import util.RequestExecutor;
+import util.SearchIndex;
+
+// Starts and stops the application-wide resources configured in web.xml.
+public class AppLifecycleListener implements ServletContextListener {
+    private static final Log LOG = Log.get(AppLifecycleListener.class);
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        long started = System.nanoTime();
+        ServletContext ctx = sce.getServletContext();
+        Log.configure(param(ctx, "todo.log.level"), doubleParam(ctx, "todo.log.sqlSampleRate", 0));
+        // first, so a deployment without a secret fails before any thread is started
+        AuthToken.configure(param(ctx, "todo.auth.tokenSecret"), intParam(ctx, "todo.auth.tokenTtlHours", 12));
+        if (!"true".equalsIgnoreCase(param(ctx, "todo.auth.required"))) {
+            LOG.warn("todo.auth.required is false: requests without a token can act as any user_id; "
+                    + "run like this only while clients move to tokens");
+        }
+        HibernateUtil.configureReplicas(listParam(ctx, "todo.db.replicaUrls"),
+                intParam(ctx, "todo.db.stickyMillis", 5000));
+        // the database comes up in the background; /api/health/ready turns 200 once it has,
+        // and the search index is built from it right after
+        SearchIndex.setMaxPending(intParam(ctx, "todo.search.maxPending", 10000));
+        HibernateUtil.buildAsync(SearchIndex::buildAsync);
+        int cores = Runtime.getRuntime().availableProcessors();
+        RequestExecutor.start(
+                intParam(ctx, "todo.async.maxConcurrent", cores * 8),
+                intParam(ctx, "todo.async.queueSize", 256),
+                intParam(ctx, "todo.async.timeoutMillis", 15000),
+                !"false".equalsIgnoreCase(param(ctx, "todo.async.virtualThreads")));
+        PasswordHasher.setIterations(intParam(ctx, "todo.auth.hashIterations", 120000));
+        CompletionBuffer.start(intParam(ctx, "todo.writeBehind.flushMillis", 0),
+                intParam(ctx, "todo.writeBehind.maxPending", 10000));
+        ChangeFeed.start(intParam(ctx, "todo.events.maxStreams", 10000),
+                intParam(ctx, "todo.events.maxStreamsPerUser", 16),
+                intParam(ctx, "todo.events.queueSize", 64),
+                intParam(ctx, "todo.events.heartbeatSeconds", 25));
+        LOG.info("Context initialized in {} ms", (System.nanoTime() - started) / 1_000_000);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        ChangeFeed.shutdown();
+        RequestExecutor.shutdown();
+        // after the executor: no more toggles arrive while the last ones are written
+        CompletionBuffer.shutdown();
+        PasswordHasher.shutdown();
+        SearchIndex.shutdown();
+        HibernateUtil.shutdown();
+        Log.shutdown();
+    }
+
+    // a -D system property overrides the web.xml context-param
+    static String param(ServletContext ctx, String name) {
+        String v = System.getProperty(name);
+        return v != null ? v : ctx.getInitParameter(name);
+    }
+
+    // comma-separated, blanks dropped
+    static List<String> listParam(ServletContext ctx, String name) {
+        List<String> values = new ArrayList<>();
+        String v = param(ctx, name);
+        if (v == null) return values;
+        for (String part : v.split(",")) {
+            if (!part.trim().isEmpty()) values.add(part.trim());
+        }
+        return values;
+    }
+
+    static int intParam(ServletContext ctx, String name, int def) {
+        String v = param(ctx, name);
+        if (v == null || v.trim().isEmpty()) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException ex) {
+            LOG.warn("Ignoring invalid {}={}", name, v);
+            return def;
+        }
+    }
+
+    static double doubleParam(ServletContext ctx, String name, double def) {
+        String v = param(ctx, name);
+        if (v == null || v.trim().isEmpty()) return def;
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (NumberFormatException ex) {
+            LOG.warn("Ignoring invalid {}={}", name, v);
+            return def;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package controller;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.Log;
+import util.RequestExecutor;
+
+// Base class for the API servlets: hands each request to RequestExecutor so
+// blocking Hibernate work does not hold a container thread. Requests beyond
+// the executor's capacity get 503 with Retry-After, and so does a request
+// still queued or running after the configured timeout.
+// Only one side ever writes the response and completes the request: the
+// handler, or the deadline when the handler never got to start. A deadline
+// that finds the handler running just interrupts it; the handler answers 503
+// from its own finally once it has actually stopped, unless it returned
+// normally anyway, in which case its answer stands. The container's own
+// async timeout is off, since after it fires the container recycles the
+// response even while a handler is still writing to it.
+public abstract class AsyncServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Log LOG = Log.get(AsyncServlet.class);
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    // the deadline passed while running: the handler answers 503 if it then fails
+    private static final int TIMED_OUT = 2;
+    // the client went away while running: nothing more to write
+    private static final int ABANDONED = 3;
+    private static final int DONE = 4;
+
+    @Override
+    protected void service(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        RequestExecutor executor = RequestExecutor.get();
+        if (executor == null || !req.isAsyncSupported() || req.isAsyncStarted()) {
+            super.service(req, resp);
+            return;
+        }
+        final AsyncContext ctx = req.startAsync(req, resp);
+        ctx.setTimeout(0);
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        final AtomicReference<Future<?>> task = new AtomicReference<>();
+        // scheduled before the task so it can never miss it; dropped once the request completes
+        final ScheduledFuture<?> deadline = executor.schedule(() -> {
+            if (state.compareAndSet(QUEUED, DONE)) {
+                try {
+                    unavailable(resp, "request timed out");
+                } catch (IOException ex) {
+                    LOG.warn("Could not answer timed out request", ex);
+                }
+                complete(ctx);
+            } else if (state.compareAndSet(RUNNING, TIMED_OUT)) {
+                cancel(task.get());
+            }
+        }, executor.getTimeoutMillis());
+        ctx.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {}
+
+            @Override
+            public void onError(AsyncEvent event) {
+                if (!state.compareAndSet(QUEUED, DONE) && state.compareAndSet(RUNNING, ABANDONED)) {
+                    cancel(task.get());
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+                deadline.cancel(false);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+        });
+
+        final String requestId = RequestIdFilter.id(req);
+        Future<?> submitted = executor.submit(() -> {
+            // answered by the deadline (or dropped by the client) while queued
+            if (!state.compareAndSet(QUEUED, RUNNING)) return;
+            String previous = Log.bind(requestId);
+            boolean failed = false;
+            try {
+                AsyncServlet.super.service(req, resp);
+            } catch (Exception ex) {
+                failed = true;
+                if (state.get() == RUNNING) {
+                    LOG.error("{} failed", getClass().getSimpleName(), ex);
+                    if (!resp.isCommitted()) resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } finally {
+                int outcome = state.getAndSet(DONE);
+                // the interrupt, if any, was meant for the handler, not for writing the answer
+                Thread.interrupted();
+                try {
+                    if (outcome == TIMED_OUT && failed) {
+                        LOG.warn("{} timed out", getClass().getSimpleName());
+                        unavailable(resp, "request timed out");
+                    } else if (outcome == RUNNING || outcome == TIMED_OUT) {
+                        // a handler that finished past the deadline still gave a whole answer
+                        CompressionFilter.finish(resp);
+                    }
+                } catch (IOException ex) {
+                    LOG.warn("Could not finish response", ex);
+                }
+                complete(ctx);
+                Log.bind(previous);
+            }
+        });
+        if (submitted == null) {
+            if (state.compareAndSet(QUEUED, DONE)) {
+                unavailable(resp, "server busy");
+                complete(ctx);
+            }
+            return;
+        }
+        task.set(submitted);
+    }
+
+    private static void cancel(Future<?> task) {
+        if (task != null) task.cancel(true);
+    }
+
+    private static void complete(AsyncContext ctx) {
+        try {
+            ctx.complete();
+        } catch (IllegalStateException ex) {
+            // the container already ended the request after an I/O error
+        }
+    }
+
+    private static void unavailable(HttpServletResponse resp, String message) throws IOException {
+        if (resp.isCommitted()) return;
+        resp.reset();
+        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setHeader("Retry-After", "1");
+        resp.setContentType("application/json;charset=UTF-8");
+        try (PrintWriter out = resp.getWriter()) {
+            out.print("{\"error\":\"" + message + "\"}");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package controller;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.AuthToken;
+
+// Resolves "Authorization: Bearer <token>" to a user id and stores it on the
+// request (see userId()), so handlers scope their queries by todos.user_id
+// instead of trusting user_id/user parameters. A bad or expired token is a
+// 401. Requests without a token pass through for older clients unless the
+// todo.auth.required context-param is true, which it should be outside a
+// migration to tokens; login, sign-up, metrics and health are always open.
+public class AuthFilter implements Filter {
+    private static final String USER_ID = "todo.auth.userId";
+
+    private boolean required;
+
+    public void init(FilterConfig filterConfig) {
+        required = "true".equalsIgnoreCase(AppLifecycleListener.param(filterConfig.getServletContext(), "todo.auth.required"));
+    }
+
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        String header = request.getHeader("Authorization");
+        if (header != null && header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            Long userId = AuthToken.verify(header.substring(7).trim());
+            if (userId == null) {
+                unauthorized(response, "invalid or expired token");
+                return;
+            }
+            request.setAttribute(USER_ID, userId);
+        } else if (required && !isOpen(request)) {
+            unauthorized(response, "authentication required");
+            return;
+        }
+        chain.doFilter(req, res);
+    }
+
+    // the user id from a verified token, null when the request carried none
+    public static Long userId(HttpServletRequest req) {
+        return (Long) req.getAttribute(USER_ID);
+    }
+
+    private static boolean isOpen(HttpServletRequest req) {
+        // CORS preflight, POST /api/users (sign-up), POST /api/users/auth and the
+        // Prometheus scrape of /api/metrics (restrict that one at the proxy), and the health probes
+        if ("OPTIONS".equals(req.getMethod())) return true;
+        String uri = req.getRequestURI().substring(req.getContextPath().length());
+        if ("GET".equals(req.getMethod()) && (uri.equals("/api/metrics") || uri.startsWith("/api/health/"))) return true;
+        return "POST".equals(req.getMethod()) && (uri.equals("/api/users") || uri.equals("/api/users/auth"));
+    }
+
+    private static void unauthorized(HttpServletResponse resp, String message) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+        resp.setHeader("WWW-Authenticate", "Bearer");
+        resp.setContentType("application/json;charset=UTF-8");
+        try (PrintWriter out = resp.getWriter()) {
+            out.print("{\"error\":\"" + message + "\"}");
+        }
+    }
+
+    public void destroy() {}
+}
@@ -17,7 +17,8 @@ public class CORSFilter implements Filter {
         HttpServletResponse response = (HttpServletResponse) res;
         response.setHeader("Access-Control-Allow-Origin", "*");
         response.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        response.setHeader("Access-Control-Allow-Headers", "Content-Type, Authorization");
+        response.setHeader("Access-Control-Allow-Headers", "Content-Type, Authorization, If-None-Match, If-Modified-Since, X-Request-Id");
+        response.setHeader("Access-Control-Expose-Headers", "X-Next-After, X-Total-Count, ETag, Last-Modified, X-Request-Id");
         chain.doFilter(req, res);
     }
 
@@ -2,39 +2,40 @@ package controller;
 
 import entity.Category;
 import entity.User;
+import util.CollectionVersions;
 import util.HibernateUtil;
+import util.JsonWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.List;
 import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 
-public class CategoryServlet extends HttpServlet {
+public class CategoryServlet extends AsyncServlet {
     @Override
     @SuppressWarnings("unchecked")
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         resp.setContentType("application/json;charset=UTF-8");
-        Session session = HibernateUtil.getSessionFactory().openSession();
+        resp.addHeader("Vary", "Authorization");
+        if (CollectionVersions.notModified(req, resp, CollectionVersions.CATEGORIES)) {
+            return;
+        }
+        Session session = HibernateUtil.getReadSessionFactory(CollectionVersions.CATEGORIES).openSession();
         try {
-            List<Category> categories = (List<Category>) session.createQuery("from Category").list();
-            StringBuilder sb = new StringBuilder();
-            sb.append('[');
-            for (int i = 0; i < categories.size(); i++) {
-                Category c = categories.get(i);
-                sb.append('{')
-                        .append("\"id\":").append(c.getId()).append(',')
-                        .append("\"name\":\"").append(escape(c.getName())).append("\"")
-                        .append('}');
-                if (i < categories.size() - 1) sb.append(',');
-            }
-            sb.append(']');
-            try (PrintWriter out = resp.getWriter()) {
-                out.print(sb.toString());
+            List<Category> categories = (List<Category>) session.getNamedQuery("Category.all")
+                    .setCacheable(true)
+                    .setCacheRegion("query.categories")
+                    .list();
+            JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginArray();
+            for (Category c : categories) {
+                w.beginObject()
+                        .name("id").value(c.getId())
+                        .name("name").value(c.getName() != null ? c.getName() : "")
+                        .endObject();
             }
+            w.endArray().close();
         } finally {
             session.close();
         }
@@ -49,22 +50,19 @@ public class CategoryServlet extends HttpServlet {
         try {
             Transaction tx = session.beginTransaction();
             Category c = new Category(name);
-            if (userId != null) {
+            Long owner = AuthFilter.userId(req);
+            if (owner != null) {
+                c.setUser((User) session.load(User.class, owner));
+            } else if (userId != null) {
                 User u = (User) session.get(User.class, Long.parseLong(userId));
                 c.setUser(u);
             }
             session.save(c);
             tx.commit();
-            try (PrintWriter out = resp.getWriter()) {
-                out.print("{\"id\":" + c.getId() + "}");
-            }
+            CollectionVersions.bump(CollectionVersions.CATEGORIES);
+            JsonWriter.of(resp.getOutputStream()).beginObject().name("id").value(c.getId()).endObject().close();
         } finally {
             session.close();
         }
     }
-
-    private String escape(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
-    }
 }
@@ -0,0 +1,390 @@
+package controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import util.DeflaterPool;
+
+// gzip/deflate for JSON and text responses on /api/*. The first minBytes of a
+// body are held back: a response that ends within them (or declared a
+// smaller Content-Length) goes out uncompressed, anything larger is
+// compressed as it is written, with flush() mapped to a zlib sync flush so
+// streamed lists still reach the client in chunks. Deflaters come from
+// util.DeflaterPool. Handlers running on the request executor are finished by
+// AsyncServlet through finish(), everything else when the chain returns.
+public class CompressionFilter implements Filter {
+    private static final LongAdder compressed = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+
+    private int minBytes = 1024;
+
+    public void init(FilterConfig filterConfig) {
+        minBytes = AppLifecycleListener.intParam(filterConfig.getServletContext(), "todo.compression.minBytes", minBytes);
+        DeflaterPool.setLevel(AppLifecycleListener.intParam(filterConfig.getServletContext(), "todo.compression.level", 6));
+    }
+
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        response.addHeader("Vary", "Accept-Encoding");
+        String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null || "HEAD".equals(request.getMethod())) {
+            chain.doFilter(req, res);
+            return;
+        }
+        CompressingResponse wrapped = new CompressingResponse(response, encoding, minBytes);
+        try {
+            chain.doFilter(req, wrapped);
+        } finally {
+            if (!request.isAsyncStarted()) {
+                wrapped.finish();
+            }
+        }
+    }
+
+    // completes a compressed body; a no-op for responses the filter did not wrap
+    static void finish(ServletResponse resp) throws IOException {
+        while (resp instanceof ServletResponseWrapper) {
+            if (resp instanceof CompressingResponse) {
+                ((CompressingResponse) resp).finish();
+                return;
+            }
+            resp = ((ServletResponseWrapper) resp).getResponse();
+        }
+    }
+
+    public void destroy() {}
+
+    public static Map<String, Number> metrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        long in = bytesIn.sum();
+        m.put("compression_responses", compressed.sum());
+        m.put("compression_bytes_in", in);
+        m.put("compression_bytes_out", bytesOut.sum());
+        m.put("compression_ratio", in == 0 ? 0.0 : bytesOut.sum() / (double) in);
+        m.put("compression_deflaters_idle", DeflaterPool.idle());
+        return m;
+    }
+
+    // "gzip", "deflate" or null; gzip wins a tie, q=0 excludes a coding
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        double gzip = 0;
+        double deflate = 0;
+        double any = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.split(";");
+            String coding = tokens[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < tokens.length; i++) {
+                String p = tokens[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(p.substring(2));
+                    } catch (NumberFormatException ex) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = q;
+            } else if (coding.equals("deflate")) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip == 0 && acceptEncoding.toLowerCase(Locale.ROOT).indexOf("gzip") < 0) gzip = any;
+        if (gzip > 0 && gzip >= deflate) return "gzip";
+        if (deflate > 0) return "deflate";
+        return null;
+    }
+
+    private static boolean compressible(String contentType) {
+        if (contentType == null) return false;
+        String type = contentType.toLowerCase(Locale.ROOT);
+        // server-sent events must reach the client event by event
+        if (type.startsWith("text/event-stream")) return false;
+        return type.startsWith("application/json") || type.startsWith("text/")
+                || type.contains("+json") || type.startsWith("application/vnd.todo.");
+    }
+
+    private static final class CompressingResponse extends HttpServletResponseWrapper {
+        private final String encoding;
+        private final int minBytes;
+        private CompressingStream stream;
+        private PrintWriter writer;
+        private long declaredLength = -1;
+
+        CompressingResponse(HttpServletResponse response, String encoding, int minBytes) {
+            super(response);
+            this.encoding = encoding;
+            this.minBytes = minBytes;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream == null) stream = new CompressingStream(this);
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                String cs = getCharacterEncoding();
+                Charset charset = cs != null && Charset.isSupported(cs) ? Charset.forName(cs) : StandardCharsets.ISO_8859_1;
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), charset));
+            }
+            return writer;
+        }
+
+        // a declared length is only passed on if the body ends up uncompressed
+        @Override
+        public void setContentLength(int len) {
+            declaredLength = len;
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            declaredLength = len;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                declaredLength = value != null ? Long.parseLong(value.trim()) : -1;
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setHeader(name, value);
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                declaredLength = value;
+            } else {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) writer.flush();
+            if (stream != null) stream.flush();
+            // committing now would fix the headers before the stream has chosen its encoding
+            if (stream == null || stream.out != null) super.flushBuffer();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            super.addHeader("Vary", "Accept-Encoding");
+            discard();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (stream != null && stream.deflater == null) stream.buffered = 0;
+        }
+
+        private void discard() {
+            if (stream != null) stream.release();
+            stream = null;
+            writer = null;
+            declaredLength = -1;
+        }
+
+        void finish() throws IOException {
+            if (writer != null) writer.flush();
+            if (stream != null) stream.close();
+        }
+    }
+
+    // holds back the first minBytes, then either passes them through or starts compressing
+    private static final class CompressingStream extends ServletOutputStream {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final CompressingResponse response;
+        private final boolean gzip;
+        private byte[] pending;
+        private int buffered;
+        private OutputStream out;
+        private Deflater deflater;
+        private byte[] chunk;
+        private CRC32 crc;
+        private long total;
+        private boolean closed;
+
+        CompressingStream(CompressingResponse response) {
+            this.response = response;
+            this.gzip = "gzip".equals(response.encoding);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("stream closed");
+            if (len == 0) return;
+            if (out == null) {
+                if (!decide(len)) {
+                    if (pending == null) pending = new byte[response.minBytes];
+                    System.arraycopy(b, off, pending, buffered, len);
+                    buffered += len;
+                    return;
+                }
+            }
+            if (deflater == null) {
+                out.write(b, off, len);
+                return;
+            }
+            total += len;
+            if (gzip) crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        // false while the body still fits under the threshold; otherwise picks plain or compressed
+        private boolean decide(int incoming) throws IOException {
+            long declared = response.declaredLength;
+            boolean small = declared >= 0 && declared < response.minBytes;
+            if (!small && declared < 0 && buffered + incoming <= response.minBytes) return false;
+            start(!small && compressible(response.getContentType()));
+            return true;
+        }
+
+        private void start(boolean compress) throws IOException {
+            HttpServletResponse real = (HttpServletResponse) response.getResponse();
+            if (compress) {
+                real.setHeader("Content-Encoding", response.encoding);
+                deflater = DeflaterPool.borrow(gzip);
+                chunk = new byte[8192];
+                out = real.getOutputStream();
+                if (gzip) {
+                    crc = new CRC32();
+                    out.write(GZIP_HEADER);
+                }
+                compressed.increment();
+            } else {
+                if (response.declaredLength >= 0) real.setContentLengthLong(response.declaredLength);
+                out = real.getOutputStream();
+            }
+            if (buffered > 0) {
+                byte[] b = pending;
+                int n = buffered;
+                buffered = 0;
+                pending = null;
+                write(b, 0, n);
+            }
+        }
+
+        private void deflate(int mode) throws IOException {
+            // a full chunk means more output may be pending
+            int n;
+            do {
+                n = deflater.deflate(chunk, 0, chunk.length, mode);
+                if (n > 0) {
+                    out.write(chunk, 0, n);
+                    bytesOut.add(n);
+                }
+            } while (n == chunk.length);
+        }
+
+        // before the threshold is reached a flush is held back, the body may still turn out small
+        @Override
+        public void flush() throws IOException {
+            if (out == null || closed) return;
+            if (deflater != null) deflate(Deflater.SYNC_FLUSH);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            if (out == null) {
+                // ended below the threshold: send as is, with its length known
+                if (response.declaredLength < 0 && buffered > 0) response.declaredLength = buffered;
+                start(false);
+            }
+            closed = true;
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(chunk);
+                    out.write(chunk, 0, n);
+                    bytesOut.add(n);
+                }
+                if (gzip) {
+                    writeIntLE((int) crc.getValue());
+                    writeIntLE((int) total);
+                    bytesOut.add(GZIP_HEADER.length + 8);
+                }
+                bytesIn.add(total);
+                release();
+            }
+            out.close();
+        }
+
+        private void writeIntLE(int v) throws IOException {
+            out.write(v & 0xff);
+            out.write((v >> 8) & 0xff);
+            out.write((v >> 16) & 0xff);
+            out.write((v >>> 24) & 0xff);
+        }
+
+        void release() {
+            if (deflater != null) {
+                DeflaterPool.release(deflater, gzip);
+                deflater = null;
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            throw new IllegalStateException("non-blocking writes are not supported on compressed responses");
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package controller;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.ChangeFeed;
+import util.Log;
+
+// One open GET /api/todos/stream response. The request goes async without a
+// timeout and without an executor slot, and frames queued by util.ChangeFeed
+// are written with Servlet 3.1 non-blocking I/O: whichever thread queued a
+// frame writes while the socket accepts more, and the container calls
+// onWritePossible() once it drains. Nothing blocks and no thread is tied to
+// the connection while it is idle.
+final class EventStream implements ChangeFeed.Sink, WriteListener, AsyncListener {
+    private static final Log LOG = Log.get(EventStream.class);
+    // how long EventSource waits before reconnecting after the stream ends
+    private static final byte[] OPENING = "retry: 3000\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final AsyncContext ctx;
+    private final ServletOutputStream out;
+    private final ChangeFeed.Subscription subscription;
+    // set once the write listener is registered; isReady() would throw before
+    private volatile boolean listening;
+    private boolean unflushed;
+    private boolean done;
+
+    private EventStream(AsyncContext ctx, ServletOutputStream out, ChangeFeed.Subscription subscription) {
+        this.ctx = ctx;
+        this.out = out;
+        this.subscription = subscription;
+    }
+
+    // answers 503 itself when no more streams are allowed
+    static void open(HttpServletRequest req, HttpServletResponse resp, Long userId) throws IOException {
+        ChangeFeed.Subscription sub = ChangeFeed.subscribe(userId);
+        if (sub == null) {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", "30");
+            resp.setContentType("application/json;charset=UTF-8");
+            resp.getWriter().print("{\"error\":\"too many open event streams\"}");
+            return;
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("text/event-stream;charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        // nginx would otherwise buffer the stream
+        resp.setHeader("X-Accel-Buffering", "no");
+        // the no-argument form keeps the container's own response, so the
+        // compression filter's wrapper never sees the stream
+        AsyncContext ctx = req.startAsync();
+        ctx.setTimeout(0);
+        EventStream stream = new EventStream(ctx, ctx.getResponse().getOutputStream(), sub);
+        ctx.addListener(stream);
+        sub.offer(OPENING);
+        // from here on the container calls onWritePossible, the first time right away
+        stream.out.setWriteListener(stream);
+        stream.listening = true;
+        sub.attach(stream);
+    }
+
+    @Override
+    public void wake() {
+        try {
+            synchronized (this) {
+                if (!done && listening && out.isReady()) drain();
+            }
+        } catch (IOException | IllegalStateException ex) {
+            close();
+        }
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        if (!done) drain();
+    }
+
+    // writes queued frames while the socket takes them; when isReady() turns
+    // false the container calls onWritePossible() again later
+    private void drain() throws IOException {
+        while (out.isReady()) {
+            byte[] frame = subscription.poll();
+            if (frame == null) {
+                if (!unflushed) return;
+                unflushed = false;
+                out.flush();
+                continue;
+            }
+            out.write(frame);
+            unflushed = true;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (done) return;
+        done = true;
+        subscription.close();
+        try {
+            ctx.complete();
+        } catch (IllegalStateException ex) {
+            // already completed by the container
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOG.debug("Event stream of user {} ended: {}", subscription.userId, t.toString());
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        subscription.close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+}
@@ -0,0 +1,64 @@
+package controller;
+
+import java.io.IOException;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.HibernateUtil;
+import util.JsonWriter;
+import util.Log;
+import util.SearchIndex;
+
+// Probes for the load balancer and orchestrator, open without a token:
+//   GET /api/health/live  - 200 as long as the webapp answers at all
+//   GET /api/health/ready - 200 once the SessionFactory is built and warmed up,
+//                           503 with Retry-After before that
+// The probes are unauthenticated, so a failure is only named in the log: its
+// message can carry the JDBC host, user and schema.
+// Like MetricsServlet it runs on the container thread, so a saturated request
+// executor does not fail the probes.
+public class HealthServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final Log LOG = Log.get(HealthServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("application/json;charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+        String path = req.getPathInfo();
+        if ("/live".equals(path)) {
+            JsonWriter.of(resp.getOutputStream()).beginObject().name("status").value("up").endObject().close();
+            return;
+        }
+        if (!"/ready".equals(path)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            JsonWriter.of(resp.getOutputStream()).beginObject().name("error").value("not found").endObject().close();
+            return;
+        }
+
+        boolean ready = HibernateUtil.isReady();
+        Throwable failure = HibernateUtil.failure();
+        if (failure != null) {
+            // HibernateUtil logged the stack trace when the build failed
+            LOG.warn("Not ready: {}", failure.toString());
+        }
+        if (!ready) {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", "5");
+        }
+        JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginObject()
+                .name("status").value(ready ? "ready" : failure != null ? "failing" : "starting");
+        // search answers 503 on its own until the index is built, it does not hold back readiness
+        w.name("search_index").value(SearchIndex.isReady() ? "ready" : "building");
+        if (ready) {
+            w.name("startup_ms").beginObject();
+            for (Map.Entry<String, Long> e : HibernateUtil.startupMillis().entrySet()) {
+                w.name(e.getKey()).value(e.getValue());
+            }
+            w.endObject();
+        }
+        w.endObject().close();
+    }
+}
@@ -0,0 +1,85 @@
+package controller;
+
+import java.io.IOException;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.RequestMetrics;
+
+// Outermost filter on /api/*: counts requests and errors and records latency
+// per method and route. Handlers that went async (see AsyncServlet) are timed
+// until their AsyncContext completes rather than until the filter returns,
+// except event streams: those stay open for as long as the client listens, so
+// they are timed until the stream is open.
+public class MetricsFilter implements Filter {
+    public void init(FilterConfig filterConfig) {}
+
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        final HttpServletRequest request = (HttpServletRequest) req;
+        final HttpServletResponse response = (HttpServletResponse) res;
+        final long start = System.nanoTime();
+        boolean async = false;
+        try {
+            chain.doFilter(req, res);
+            if (request.isAsyncStarted() && !isEventStream(response)) {
+                async = true;
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        record(request, response.getStatus(), start);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {}
+
+                    @Override
+                    public void onError(AsyncEvent event) {}
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {}
+                });
+            }
+        } catch (IOException | ServletException | RuntimeException ex) {
+            record(request, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, start);
+            throw ex;
+        }
+        if (!async) {
+            record(request, response.getStatus(), start);
+        }
+    }
+
+    private static boolean isEventStream(HttpServletResponse resp) {
+        String type = resp.getContentType();
+        return type != null && type.startsWith("text/event-stream");
+    }
+
+    private static void record(HttpServletRequest req, int status, long start) {
+        RequestMetrics.record(req.getMethod(), route(req), status, System.nanoTime() - start);
+    }
+
+    // the path with numeric segments replaced, e.g. /api/todos/{id}
+    static String route(HttpServletRequest req) {
+        String uri = req.getRequestURI().substring(req.getContextPath().length());
+        StringBuilder sb = new StringBuilder(uri.length());
+        for (String segment : uri.split("/")) {
+            if (segment.isEmpty()) continue;
+            sb.append('/');
+            boolean numeric = true;
+            for (int i = 0; i < segment.length() && numeric; i++) {
+                numeric = Character.isDigit(segment.charAt(i));
+            }
+            sb.append(numeric ? "{id}" : segment);
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    public void destroy() {}
+}
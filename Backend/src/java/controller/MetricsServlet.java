@@ -0,0 +1,139 @@
+package controller;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.hibernate.stat.Statistics;
+import util.ChangeFeed;
+import util.CompletionBuffer;
+import util.HibernateUtil;
+import util.LatencyHistogram;
+import util.Log;
+import util.RequestExecutor;
+import util.RequestMetrics;
+import util.SearchIndex;
+
+// GET /api/metrics in the Prometheus text exposition format. Runs on the
+// container thread rather than through AsyncServlet so a saturated request
+// executor can still be observed.
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("text/plain; version=0.0.4;charset=UTF-8");
+        StringBuilder sb = new StringBuilder(8192);
+
+        sb.append("# TYPE todo_http_requests_total counter\n");
+        for (RequestMetrics.Endpoint e : RequestMetrics.endpoints()) {
+            sample(sb, "todo_http_requests_total", labels(e, null), e.requests.sum());
+        }
+        sb.append("# TYPE todo_http_errors_total counter\n");
+        for (RequestMetrics.Endpoint e : RequestMetrics.endpoints()) {
+            sample(sb, "todo_http_errors_total", labels(e, "class=\"4xx\""), e.clientErrors.sum());
+            sample(sb, "todo_http_errors_total", labels(e, "class=\"5xx\""), e.serverErrors.sum());
+        }
+        sb.append("# TYPE todo_http_request_duration_seconds summary\n");
+        for (RequestMetrics.Endpoint e : RequestMetrics.endpoints()) {
+            summary(sb, "todo_http_request_duration_seconds", labels(e, null), e.latency);
+        }
+        sb.append("# TYPE todo_http_request_duration_max_seconds gauge\n");
+        for (RequestMetrics.Endpoint e : RequestMetrics.endpoints()) {
+            sample(sb, "todo_http_request_duration_max_seconds", labels(e, null), e.latency.maxSeconds());
+        }
+        sb.append("# TYPE todo_hibernate_session_open_seconds summary\n");
+        summary(sb, "todo_hibernate_session_open_seconds", "", RequestMetrics.SESSION_OPEN);
+        gauge(sb, "todo_hibernate_session_open_max_seconds", RequestMetrics.SESSION_OPEN.maxSeconds());
+        sb.append("# TYPE todo_jdbc_statement_seconds summary\n");
+        summary(sb, "todo_jdbc_statement_seconds", "", RequestMetrics.JDBC_STATEMENT);
+        gauge(sb, "todo_jdbc_statement_max_seconds", RequestMetrics.JDBC_STATEMENT.maxSeconds());
+
+        // nothing to report while the SessionFactory is still being built
+        if (HibernateUtil.isReady()) {
+            Statistics stats = HibernateUtil.getSessionFactory().getStatistics();
+            counter(sb, "todo_hibernate_queries_total", stats.getQueryExecutionCount());
+            gauge(sb, "todo_hibernate_query_max_seconds", stats.getQueryExecutionMaxTime() / 1000.0);
+            counter(sb, "todo_hibernate_entity_loads_total", stats.getEntityLoadCount());
+            counter(sb, "todo_hibernate_entity_fetches_total", stats.getEntityFetchCount());
+            counter(sb, "todo_hibernate_entity_inserts_total", stats.getEntityInsertCount());
+            counter(sb, "todo_hibernate_entity_updates_total", stats.getEntityUpdateCount());
+            counter(sb, "todo_hibernate_entity_deletes_total", stats.getEntityDeleteCount());
+            counter(sb, "todo_hibernate_collection_loads_total", stats.getCollectionLoadCount());
+            counter(sb, "todo_hibernate_sessions_opened_total", stats.getSessionOpenCount());
+            counter(sb, "todo_hibernate_sessions_closed_total", stats.getSessionCloseCount());
+            counter(sb, "todo_hibernate_transactions_total", stats.getTransactionCount());
+            counter(sb, "todo_hibernate_statements_prepared_total", stats.getPrepareStatementCount());
+            counter(sb, "todo_hibernate_flushes_total", stats.getFlushCount());
+            counter(sb, "todo_hibernate_connections_total", stats.getConnectCount());
+            counter(sb, "todo_hibernate_optimistic_failures_total", stats.getOptimisticFailureCount());
+
+            gauges(sb, HibernateUtil.getPoolMetrics());
+            gauges(sb, HibernateUtil.getCacheMetrics());
+            gauges(sb, HibernateUtil.getReplicaMetrics());
+        }
+        RequestExecutor executor = RequestExecutor.get();
+        if (executor != null) gauges(sb, executor.metrics());
+        gauges(sb, SearchIndex.metrics());
+        gauges(sb, Log.metrics());
+        gauges(sb, CompressionFilter.metrics());
+        gauges(sb, CompletionBuffer.metrics());
+        gauges(sb, ChangeFeed.metrics());
+        gauges(sb, AddressLimitFilter.metrics());
+        gauges(sb, RateLimitFilter.metrics());
+
+        try (PrintWriter out = resp.getWriter()) {
+            out.print(sb);
+        }
+    }
+
+    private static String labels(RequestMetrics.Endpoint e, String extra) {
+        return "method=\"" + e.method + "\",route=\"" + escape(e.route) + "\"" + (extra != null ? "," + extra : "");
+    }
+
+    private static void summary(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+        String sep = labels.isEmpty() ? "" : ",";
+        for (double q : QUANTILES) {
+            sample(sb, name, labels + sep + "quantile=\"" + q + "\"", h.quantileSeconds(q));
+        }
+        sample(sb, name + "_sum", labels, h.sumSeconds());
+        sample(sb, name + "_count", labels, h.count());
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sample(sb, name, "", value);
+    }
+
+    private static void gauge(StringBuilder sb, String name, double value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sample(sb, name, "", value);
+    }
+
+    // the util.*Metrics maps, e.g. pool_in_use -> todo_pool_in_use
+    private static void gauges(StringBuilder sb, Map<String, Number> values) {
+        for (Map.Entry<String, Number> e : values.entrySet()) {
+            gauge(sb, "todo_" + e.getKey().replaceAll("[^a-zA-Z0-9_]", "_"), e.getValue().doubleValue());
+        }
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ');
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,197 @@
+package controller;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.TokenBuckets;
+
+// Admission control on /api/*, mapped after AuthFilter so it knows the user.
+// A client is the token's user id or, without a token, the remote address.
+//  - each client has a token bucket per class of route: login and sign-up
+//    ("auth") are limited tightest, then writes, then reads (GET and HEAD);
+//  - at most maxInFlight requests of a client are handled at once, counted
+//    until an async handler completes, so one client looping on a slow list
+//    cannot hold every pooled connection.
+// A refused request gets 429 with Retry-After in seconds. CORS preflights,
+// the health probes and /api/metrics are never limited; GET /api/todos/stream
+// counts as a read when it opens but not as work in flight. The looser bucket
+// per remote address is AddressLimitFilter, ahead of AuthFilter. Behind a
+// proxy, let the container resolve the client address (Tomcat's RemoteIpValve).
+public class RateLimitFilter implements Filter {
+    // not among the HttpServletResponse constants in Servlet 3.1
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private static final LongAdder limited = new LongAdder();
+    private static final LongAdder busy = new LongAdder();
+    private static volatile RateLimitFilter active;
+
+    private final ConcurrentMap<Object, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+    private TokenBuckets auth;
+    private TokenBuckets read;
+    private TokenBuckets write;
+    private int maxInFlight;
+    private int maxClients;
+
+    public void init(FilterConfig filterConfig) {
+        ServletContext ctx = filterConfig.getServletContext();
+        maxClients = AppLifecycleListener.intParam(ctx, "todo.rateLimit.maxClients", 100000);
+        auth = buckets(ctx, "auth", 1, 10, maxClients);
+        read = buckets(ctx, "read", 50, 100, maxClients);
+        write = buckets(ctx, "write", 20, 50, maxClients);
+        maxInFlight = AppLifecycleListener.intParam(ctx, "todo.rateLimit.maxInFlight", 4);
+        active = this;
+    }
+
+    // null (no limit) when todo.rateLimit.<name>.perSecond is 0
+    static TokenBuckets buckets(ServletContext ctx, String name, double perSecond, int burst, int maxClients) {
+        double rate = AppLifecycleListener.doubleParam(ctx, "todo.rateLimit." + name + ".perSecond", perSecond);
+        if (rate <= 0) return null;
+        return new TokenBuckets(rate, AppLifecycleListener.intParam(ctx, "todo.rateLimit." + name + ".burst", burst), maxClients);
+    }
+
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        String method = request.getMethod();
+        String uri = request.getRequestURI();
+        int from = request.getContextPath().length();
+        if (isExempt(method, uri, from)) {
+            chain.doFilter(req, res);
+            return;
+        }
+
+        Long userId = AuthFilter.userId(request);
+        Object client = userId != null ? userId : request.getRemoteAddr();
+        TokenBuckets buckets = routeBuckets(method, uri, from);
+        long wait = buckets != null ? buckets.take(client, System.nanoTime()) : 0;
+        if (wait > 0) {
+            limited.increment();
+            tooManyRequests(response, wait, "rate limit exceeded");
+            return;
+        }
+
+        if (maxInFlight <= 0 || uri.startsWith("/api/todos/stream", from)) {
+            chain.doFilter(req, res);
+            return;
+        }
+        final AtomicInteger slot = acquire(client);
+        if (slot == null) {
+            busy.increment();
+            tooManyRequests(response, NANOS_PER_SECOND, "too many requests in progress");
+            return;
+        }
+        boolean async = false;
+        try {
+            chain.doFilter(req, res);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        slot.decrementAndGet();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {}
+
+                    @Override
+                    public void onError(AsyncEvent event) {}
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {}
+                });
+                async = true;
+            }
+        } finally {
+            if (!async) slot.decrementAndGet();
+        }
+    }
+
+    private TokenBuckets routeBuckets(String method, String uri, int from) {
+        if ("GET".equals(method) || "HEAD".equals(method)) return read;
+        // POST /api/users (sign-up) and POST /api/users/auth
+        if ("POST".equals(method) && uri.startsWith("/api/users", from)
+                && (uri.length() == from + 10 || uri.startsWith("/auth", from + 10))) {
+            return auth;
+        }
+        return write;
+    }
+
+    // CORS preflights, the health probes and /api/metrics; from is the context path length
+    static boolean isExempt(String method, String uri, int from) {
+        return "OPTIONS".equals(method) || uri.startsWith("/api/health/", from) || uri.startsWith("/api/metrics", from);
+    }
+
+    // null when the client already has maxInFlight requests running
+    private AtomicInteger acquire(Object client) {
+        for (;;) {
+            AtomicInteger count = inFlight.get(client);
+            if (count == null) {
+                if (inFlight.size() >= maxClients) sweepIdle();
+                AtomicInteger fresh = new AtomicInteger();
+                count = inFlight.putIfAbsent(client, fresh);
+                if (count == null) count = fresh;
+            }
+            int n = count.incrementAndGet();
+            // retired by sweepIdle() just now: start over with a fresh counter
+            if (n <= 0) continue;
+            if (n <= maxInFlight) return count;
+            count.decrementAndGet();
+            return null;
+        }
+    }
+
+    // counters stay in the map while their client is active, so the common
+    // path allocates nothing; idle ones are retired (set negative, which no
+    // increment brings back above 0) and dropped once the map is full, at
+    // most once a second
+    private void sweepIdle() {
+        long now = System.nanoTime();
+        long next = nextSweep.get();
+        if (now - next < 0 || !nextSweep.compareAndSet(next, now + NANOS_PER_SECOND)) return;
+        inFlight.values().removeIf(c -> c.compareAndSet(0, Integer.MIN_VALUE));
+    }
+
+    static void tooManyRequests(HttpServletResponse resp, long waitNanos, String message) throws IOException {
+        resp.setStatus(SC_TOO_MANY_REQUESTS);
+        resp.setHeader("Retry-After", Long.toString((waitNanos + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND));
+        resp.setContentType("application/json;charset=UTF-8");
+        try (PrintWriter out = resp.getWriter()) {
+            out.print("{\"error\":\"" + message + "\"}");
+        }
+    }
+
+    public static Map<String, Number> metrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("ratelimit_limited", limited.sum());
+        m.put("ratelimit_busy", busy.sum());
+        RateLimitFilter f = active;
+        if (f != null) {
+            m.put("ratelimit_clients_tracked", f.inFlight.size());
+        }
+        return m;
+    }
+
+    public void destroy() {
+        if (active == this) active = null;
+    }
+}
@@ -0,0 +1,64 @@
+package controller;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import util.Log;
+
+// Gives every API request a correlation id: the caller's X-Request-Id when it
+// is a short token, otherwise a new one. The id is echoed in the response,
+// kept as a request attribute for the handler thread (see AsyncServlet) and
+// bound to Log so every line logged for the request carries it.
+public class RequestIdFilter implements Filter {
+    static final String ATTRIBUTE = "todo.requestId";
+    private static final int MAX_LENGTH = 64;
+
+    // per-JVM prefix so ids from different instances do not collide
+    private static final String PREFIX = Long.toString(ThreadLocalRandom.current().nextLong(36L * 36 * 36 * 36, 36L * 36 * 36 * 36 * 36), 36) + "-";
+    private static final AtomicLong counter = new AtomicLong();
+
+    public void init(FilterConfig filterConfig) {}
+
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        String id = request.getHeader("X-Request-Id");
+        if (!valid(id)) {
+            id = PREFIX + Long.toString(counter.incrementAndGet(), 36);
+        }
+        request.setAttribute(ATTRIBUTE, id);
+        ((HttpServletResponse) res).setHeader("X-Request-Id", id);
+        String previous = Log.bind(id);
+        try {
+            chain.doFilter(req, res);
+        } finally {
+            Log.bind(previous);
+        }
+    }
+
+    static String id(HttpServletRequest req) {
+        return (String) req.getAttribute(ATTRIBUTE);
+    }
+
+    // letters, digits, '.', '_' and '-' only, so ids can go into log lines unquoted
+    private static boolean valid(String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_LENGTH) return false;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '_' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void destroy() {}
+}
@@ -0,0 +1,196 @@
+package controller;
+
+import entity.Todo;
+import entity.TodoView;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import javax.servlet.http.HttpServletRequest;
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.SharedSessionContract;
+import org.hibernate.criterion.CriteriaQuery;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.transform.BasicTransformerAdapter;
+
+// The filters, sort and page of a GET /api/todos request, turned into a
+// Criteria query so every condition runs in SQL. Each filter is a plain
+// comparison on a todos column, so the (user_id, ...) indexes on Todo apply:
+//   completed=true|false, priority=HIGH[,MEDIUM], category_id=<id>,
+//   created_from / created_to=<yyyy-mm-dd | ISO instant | epoch millis>,
+//   sort=id|created_at|priority (prefix "-" for descending)
+// Keyset paging with after= only works on the default id order.
+final class TodoQuery {
+    enum Sort { ID, CREATED_AT, PRIORITY }
+
+    // one row per todo, same columns as TodoView.SELECT
+    private static final BasicTransformerAdapter TO_VIEW = new BasicTransformerAdapter() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object transformTuple(Object[] tuple, String[] aliases) {
+            return new TodoView((Long) tuple[0], (String) tuple[1], (String) tuple[2], (String) tuple[3],
+                    (Boolean) tuple[4], (Long) tuple[5]);
+        }
+    };
+
+    Long userId;
+    String username;
+    Long after;
+    Integer limit;
+    Boolean completed;
+    List<String> priorities;
+    Long categoryId;
+    Date createdFrom;
+    Date createdTo;
+    Sort sort = Sort.ID;
+    boolean descending;
+
+    // IllegalArgumentException with a client-facing message for a bad parameter
+    static TodoQuery parse(HttpServletRequest req, Long authUser, int maxPageSize) {
+        TodoQuery q = new TodoQuery();
+        // a verified token decides whose todos these are; the parameters only serve older clients
+        q.userId = authUser;
+        if (authUser == null) {
+            q.userId = longParam(req, "user_id");
+            q.username = emptyToNull(req.getParameter("user"));
+        }
+        q.after = longParam(req, "after");
+        Long limit = longParam(req, "limit");
+        if (limit != null) q.limit = (int) Math.max(1, Math.min(maxPageSize, limit));
+        // keyset pagination: ?after=<last id seen>&limit=<n>
+        if (q.after != null && q.limit == null) q.limit = maxPageSize;
+
+        String completed = emptyToNull(req.getParameter("completed"));
+        if (completed != null) {
+            if ("true".equalsIgnoreCase(completed) || "1".equals(completed)) q.completed = true;
+            else if ("false".equalsIgnoreCase(completed) || "0".equals(completed)) q.completed = false;
+            else throw new IllegalArgumentException("completed must be true or false");
+        }
+        String priority = emptyToNull(req.getParameter("priority"));
+        if (priority != null) {
+            q.priorities = new ArrayList<>();
+            for (String p : priority.split(",")) {
+                String v = p.trim().toUpperCase(Locale.ROOT);
+                if (!v.equals("LOW") && !v.equals("MEDIUM") && !v.equals("HIGH")) {
+                    throw new IllegalArgumentException("priority must be LOW, MEDIUM or HIGH");
+                }
+                q.priorities.add(v);
+            }
+        }
+        q.categoryId = longParam(req, "category_id");
+        q.createdFrom = dateParam(req, "created_from");
+        q.createdTo = dateParam(req, "created_to");
+
+        String sort = emptyToNull(req.getParameter("sort"));
+        if (sort != null) {
+            q.descending = sort.startsWith("-");
+            String field = q.descending ? sort.substring(1) : sort;
+            if (field.equals("id")) q.sort = Sort.ID;
+            else if (field.equals("created_at")) q.sort = Sort.CREATED_AT;
+            else if (field.equals("priority")) q.sort = Sort.PRIORITY;
+            else throw new IllegalArgumentException("sort must be id, created_at or priority");
+        }
+        if (q.after != null && (q.sort != Sort.ID || q.descending)) {
+            throw new IllegalArgumentException("after only works with sort=id");
+        }
+        return q;
+    }
+
+    // the matching todos as TodoView rows, ordered and limited
+    Criteria list(SharedSessionContract session) {
+        Criteria c = filtered(session)
+                .setProjection(Projections.projectionList()
+                        .add(Projections.property("id"))
+                        .add(Projections.property("title"))
+                        .add(Projections.property("description"))
+                        .add(Projections.property("priority"))
+                        .add(Projections.property("completed"))
+                        .add(Projections.property("user.id")))
+                .setResultTransformer(TO_VIEW)
+                .setReadOnly(true);
+        if (sort == Sort.CREATED_AT) {
+            c.addOrder(descending ? Order.desc("createdAt") : Order.asc("createdAt"));
+        } else if (sort == Sort.PRIORITY) {
+            c.addOrder(new PriorityOrder(descending));
+        }
+        // id breaks ties so pages and streams have a stable order
+        c.addOrder(descending ? Order.desc("id") : Order.asc("id"));
+        if (limit != null) c.setMaxResults(limit);
+        return c;
+    }
+
+    // select count(*) with the same filters
+    Criteria count(SharedSessionContract session) {
+        return filtered(session).setProjection(Projections.rowCount());
+    }
+
+    private Criteria filtered(SharedSessionContract session) {
+        Criteria c = session.createCriteria(Todo.class, "t");
+        if (userId != null) {
+            // user.id is the todos.user_id column, no join
+            c.add(Restrictions.eq("user.id", userId));
+        } else if (username != null) {
+            // legacy ?user=<username>, needs the join
+            c.createAlias("user", "u").add(Restrictions.eq("u.username", username));
+        }
+        if (completed != null) c.add(Restrictions.eq("completed", completed));
+        if (priorities != null) c.add(Restrictions.in("priority", priorities));
+        if (categoryId != null) c.add(Restrictions.eq("category.id", categoryId));
+        if (createdFrom != null) c.add(Restrictions.ge("createdAt", createdFrom));
+        if (createdTo != null) c.add(Restrictions.lt("createdAt", createdTo));
+        if (after != null) c.add(Restrictions.gt("id", after));
+        return c;
+    }
+
+    private static Long longParam(HttpServletRequest req, String name) {
+        String v = emptyToNull(req.getParameter(name));
+        if (v == null) return null;
+        try {
+            return Long.valueOf(v);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("invalid " + name);
+        }
+    }
+
+    // a plain date means midnight server time, as created_at is stored in server time
+    private static Date dateParam(HttpServletRequest req, String name) {
+        String v = emptyToNull(req.getParameter(name));
+        if (v == null) return null;
+        try {
+            if (v.chars().allMatch(Character::isDigit)) return new Date(Long.parseLong(v));
+            if (v.length() == 10) return Date.from(LocalDate.parse(v).atStartOfDay(ZoneId.systemDefault()).toInstant());
+            return Date.from(Instant.parse(v));
+        } catch (DateTimeParseException | NumberFormatException ex) {
+            throw new IllegalArgumentException("invalid " + name);
+        }
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    // HIGH, MEDIUM, LOW by meaning rather than alphabetically, whatever the column type
+    private static final class PriorityOrder extends Order {
+        private static final long serialVersionUID = 1L;
+
+        PriorityOrder(boolean descending) {
+            // ascending means most important first
+            super("priority", !descending);
+        }
+
+        @Override
+        public String toSqlString(Criteria criteria, CriteriaQuery criteriaQuery) throws HibernateException {
+            String column = criteriaQuery.getColumnsUsingProjection(criteria, getPropertyName())[0];
+            return "case " + column + " when 'HIGH' then 0 when 'MEDIUM' then 1 else 2 end"
+                    + (isAscending() ? " asc" : " desc");
+        }
+    }
+}
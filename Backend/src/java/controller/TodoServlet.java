@@ -1,83 +1,530 @@
 package controller;
 
 import entity.Todo;
+import entity.TodoStat;
+import entity.TodoTombstone;
+import entity.TodoView;
 import entity.Category;
 import entity.User;
+import util.ChangeFeed;
+import util.ChangeVersions;
+import util.CollectionVersions;
+import util.CompletionBuffer;
 import util.HibernateUtil;
+import util.JsonBody;
+import util.JsonWriter;
+import util.Log;
+import util.SearchIndex;
+import util.TodoColumns;
+import util.TodoStats;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
 import org.hibernate.Transaction;
+import org.hibernate.proxy.HibernateProxy;
+
+public class TodoServlet extends AsyncServlet {
+    private static final Log LOG = Log.get(TodoServlet.class);
+    // upper bound for ?limit= on keyset-paginated reads
+    private static final int MAX_PAGE_SIZE = 500;
+    // rows written between flushes when streaming (?stream=true)
+    private static final int STREAM_FLUSH_EVERY = 256;
+    // limits for POST /api/todos/batch
+    private static final int MAX_BATCH_OPS = 500;
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+    // results per GET /api/todos/search
+    private static final int DEFAULT_SEARCH_RESULTS = 20;
+    private static final int MAX_SEARCH_RESULTS = 100;
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        // the event stream stays open: it must not hold an executor slot or run into its timeout
+        if ("/stream".equals(req.getPathInfo()) && "GET".equals(req.getMethod())) {
+            doEvents(req, resp);
+            return;
+        }
+        super.service(req, resp);
+    }
 
-public class TodoServlet extends HttpServlet {
     @Override
     @SuppressWarnings("unchecked")
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         resp.setContentType("application/json;charset=UTF-8");
+        // every GET here answers for the token's user
+        resp.addHeader("Vary", "Authorization");
+        if ("/changes".equals(req.getPathInfo())) {
+            doChanges(req, resp);
+            return;
+        }
+        if ("/stats".equals(req.getPathInfo())) {
+            doStats(req, resp);
+            return;
+        }
+        if ("/search".equals(req.getPathInfo())) {
+            doSearch(req, resp);
+            return;
+        }
+        TodoQuery query = parseQuery(req, resp);
+        if (query == null) return;
+        // the plain list can also be sent in one of the compact TodoColumns formats
+        String format = TodoColumns.negotiate(req.getHeader("Accept"));
+        resp.addHeader("Vary", "Accept");
+        // nothing written since the client's copy: 304 without touching the database
+        if (notModified(req, resp, query, format)) {
+            return;
+        }
+
+        // a completion filter runs in SQL, so buffered toggles must be there first
+        if (query.completed != null) CompletionBuffer.flush(query.userId);
+
+        if ("true".equalsIgnoreCase(req.getParameter("count"))) {
+            JsonWriter.of(resp.getOutputStream()).beginObject().name("count").value(count(query)).endObject().close();
+            return;
+        }
+        if ("true".equalsIgnoreCase(req.getParameter("stream"))) {
+            streamTodos(resp, query);
+            return;
+        }
+
+        Session session = HibernateUtil.getReadSessionFactory(collectionOf(query)).openSession();
+        try {
+            long mark = CompletionBuffer.mark();
+            List<TodoView> todos = (List<TodoView>) query.list(session).list();
+            CompletionBuffer.overlay(todos, mark);
+            if (query.limit != null && todos.size() == query.limit && query.sort == TodoQuery.Sort.ID && !query.descending) {
+                // a full page: tell the client where to resume
+                resp.setHeader("X-Next-After", String.valueOf(todos.get(todos.size() - 1).getId()));
+            }
+            if (format == TodoColumns.BINARY) {
+                resp.setContentType(TodoColumns.BINARY);
+                TodoColumns.writeBinary(todos, resp.getOutputStream());
+            } else if (format == TodoColumns.COLUMNS_JSON) {
+                resp.setContentType(TodoColumns.COLUMNS_JSON + ";charset=UTF-8");
+                TodoColumns.writeColumnsJson(todos, resp.getOutputStream());
+            } else {
+                JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginArray();
+                for (TodoView t : todos) {
+                    writeTodo(w, t);
+                }
+                w.endArray().close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    // HEAD /api/todos?<filters>: only the number of matching todos, in X-Total-Count
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (req.getPathInfo() != null && !"/".equals(req.getPathInfo())) {
+            super.doHead(req, resp);
+            return;
+        }
+        resp.setContentType("application/json;charset=UTF-8");
+        resp.addHeader("Vary", "Authorization");
+        TodoQuery query = parseQuery(req, resp);
+        if (query == null || notModified(req, resp, query, TodoColumns.JSON)) return;
+        if (query.completed != null) CompletionBuffer.flush(query.userId);
+        resp.setHeader("X-Total-Count", String.valueOf(count(query)));
+    }
+
+    // answers 400 itself and returns null for a bad parameter
+    private TodoQuery parseQuery(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        try {
+            return TodoQuery.parse(req, AuthFilter.userId(req), MAX_PAGE_SIZE);
+        } catch (IllegalArgumentException ex) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"" + ex.getMessage() + "\"}"); }
+            return null;
+        }
+    }
+
+    private boolean notModified(HttpServletRequest req, HttpServletResponse resp, TodoQuery query, String format) {
+        return CollectionVersions.notModified(req, resp, collectionOf(query),
+                format == TodoColumns.BINARY ? "bin" : format == TodoColumns.COLUMNS_JSON ? "cols" : null);
+    }
+
+    // the CollectionVersions key of the todos a query reads
+    private static String collectionOf(TodoQuery query) {
+        return query.userId != null ? CollectionVersions.todosOf(query.userId) : CollectionVersions.TODOS;
+    }
+
+    private long count(TodoQuery query) {
+        Session session = HibernateUtil.getReadSessionFactory(collectionOf(query)).openSession();
+        try {
+            return ((Number) query.count(session).uniqueResult()).longValue();
+        } finally {
+            session.close();
+        }
+    }
+
+    // streaming read: a forward-only cursor on a stateless session, each row is
+    // written to the response as soon as it is read so memory stays flat
+    private void streamTodos(HttpServletResponse resp, TodoQuery query) throws IOException {
+        StatelessSession session = HibernateUtil.getReadSessionFactory(collectionOf(query)).openStatelessSession();
+        try {
+            Criteria c = query.list(session);
+            // with useCursorFetch=true on the JDBC url MySQL hands rows over in fetch-size chunks
+            c.setFetchSize(STREAM_FLUSH_EVERY);
+            long mark = CompletionBuffer.mark();
+            ScrollableResults rows = c.scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginArray();
+                int n = 0;
+                while (rows.next()) {
+                    writeTodo(w, CompletionBuffer.overlay((TodoView) rows.get(0), mark));
+                    if (++n % STREAM_FLUSH_EVERY == 0) w.flush();
+                }
+                w.endArray().close();
+            } finally {
+                rows.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    // the one todo JSON shape; "text" duplicates title for older clients
+    private void writeTodo(JsonWriter w, TodoView t) throws IOException {
+        String title = t.getTitle() != null ? t.getTitle() : "";
+        w.beginObject()
+                .name("id").value(t.getId())
+                .name("text").value(title)
+                .name("title").value(title)
+                .name("description").value(t.getDescription() != null ? t.getDescription() : "")
+                .name("priority").value(t.getPriority() != null ? t.getPriority() : "MEDIUM")
+                .name("is_completed").value(t.isCompleted() ? 1 : 0)
+                .name("user_id").value(t.getUserId())
+                .endObject();
+    }
+
+    private void writeTodo(HttpServletResponse resp, TodoView t) throws IOException {
+        JsonWriter w = JsonWriter.of(resp.getOutputStream());
+        writeTodo(w, t);
+        w.close();
+    }
+
+    // snapshot of a managed todo
+    private TodoView view(Todo t) {
+        return new TodoView(t.getId(), t.getTitle(), t.getDescription(), t.getPriority(), t.isCompleted(), userIdOf(t));
+    }
+
+    // reads the user id off the proxy instead of initializing it
+    private Long userIdOf(Todo t) {
+        User u = t.getUser();
+        if (u instanceof HibernateProxy) {
+            return (Long) ((HibernateProxy) u).getHibernateLazyInitializer().getIdentifier();
+        }
+        return u != null ? u.getId() : null;
+    }
+
+    // GET /api/todos/stream?user_id=: server-sent events "created", "updated" (data: the
+    // todo) and "deleted" (data: {"id":..}) for the user's todos, with the change
+    // version as event id where the write has one. See EventStream and util.ChangeFeed
+    private void doEvents(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Long uid = AuthFilter.userId(req);
+        try {
+            if (uid == null) uid = Long.parseLong(req.getParameter("user_id"));
+        } catch (NumberFormatException nfe) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.setContentType("application/json;charset=UTF-8");
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"numeric user_id required\"}"); }
+            return;
+        }
+        if (!req.isAsyncSupported()) {
+            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            resp.setContentType("application/json;charset=UTF-8");
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"event streams need async support\"}"); }
+            return;
+        }
+        EventStream.open(req, resp, uid);
+    }
+
+    // GET /api/todos/changes?user_id=&since=<version>: todos written and ids deleted
+    // after that version, plus the version to pass as since= next time
+    @SuppressWarnings("unchecked")
+    private void doChanges(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Long uid = AuthFilter.userId(req);
+        long since;
+        try {
+            if (uid == null) uid = Long.parseLong(req.getParameter("user_id"));
+            String sinceParam = req.getParameter("since");
+            since = sinceParam == null || sinceParam.isEmpty() ? 0 : Long.parseLong(sinceParam);
+        } catch (NumberFormatException nfe) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"user_id and numeric since required\"}"); }
+            return;
+        }
+        // buffered toggles get their change version when written
+        CompletionBuffer.flush(uid);
+        // always the primary: a replica could answer with a version older than since
         Session session = HibernateUtil.getSessionFactory().openSession();
         try {
-            String userParam = req.getParameter("user");
-            String userIdParam = req.getParameter("user_id");
-            List<Todo> todos;
-            if (userIdParam != null && !userIdParam.isEmpty()) {
-                // filter by numeric user id
-                todos = (List<Todo>) session.createQuery("from Todo t where t.user.id = :uid")
-                        .setParameter("uid", Long.parseLong(userIdParam)).list();
-            } else if (userParam != null && !userParam.isEmpty()) {
-                // filter by username
-                todos = (List<Todo>) session.createQuery("from Todo t where t.user.username = :u")
-                        .setParameter("u", userParam).list();
+            // one transaction so the version and the rows come from the same snapshot
+            Transaction tx = session.beginTransaction();
+            long version = ChangeVersions.current(session, uid);
+            List<TodoView> changed;
+            List<Long> deleted;
+            if (since > 0) {
+                changed = (List<TodoView>) session.getNamedQuery("Todo.viewsChangedSince")
+                        .setParameter("uid", uid).setParameter("since", since).setReadOnly(true).list();
+                deleted = (List<Long>) session.getNamedQuery("TodoTombstone.deletedSince")
+                        .setParameter("uid", uid).setParameter("since", since).list();
             } else {
-                todos = (List<Todo>) session.createQuery("from Todo").list();
+                // first sync: everything the user has, nothing to delete
+                changed = (List<TodoView>) session.getNamedQuery("Todo.viewsOfUser")
+                        .setParameter("uid", uid).setReadOnly(true).list();
+                deleted = new ArrayList<>();
             }
-            StringBuilder sb = new StringBuilder();
-            sb.append('[');
-            for (int i = 0; i < todos.size(); i++) {
-                Todo t = todos.get(i);
-                sb.append('{')
-                        .append("\"id\":").append(t.getId()).append(',')
-                        .append("\"text\":\"").append(escape(t.getTitle())).append("\",")
-                        .append("\"title\":\"").append(escape(t.getTitle())).append("\",")
-                        .append("\"description\":\"").append(escape(t.getDescription() != null ? t.getDescription() : "")).append("\",")
-                        .append("\"priority\":\"").append(escape(t.getPriority() != null ? t.getPriority() : "MEDIUM")).append("\",")
-                        .append("\"is_completed\":").append(t.isCompleted() ? 1 : 0).append(',')
-                        .append("\"user_id\":").append(t.getUser() != null ? t.getUser().getId() : "null")
-                        .append('}');
-                if (i < todos.size() - 1) sb.append(',');
+            tx.commit();
+
+            JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginObject()
+                    .name("version").value(version)
+                    .name("changed").beginArray();
+            for (TodoView t : changed) {
+                writeTodo(w, t);
             }
-            sb.append(']');
-            try (PrintWriter out = resp.getWriter()) {
-                out.print(sb.toString());
+            w.endArray().name("deleted").beginArray();
+            for (Long id : deleted) {
+                w.value(id);
+            }
+            w.endArray().endObject().close();
+        } finally {
+            session.close();
+        }
+    }
+
+    // GET /api/todos/stats?user_id=: totals and per-priority / per-category counts,
+    // read from the todo_stats counter rows rather than counted from todos
+    private void doStats(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Long uid = AuthFilter.userId(req);
+        try {
+            if (uid == null) uid = Long.parseLong(req.getParameter("user_id"));
+        } catch (NumberFormatException nfe) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"numeric user_id required\"}"); }
+            return;
+        }
+        // the counters only move with the user's todos, so their list counter fits
+        if (CollectionVersions.notModified(req, resp, CollectionVersions.todosOf(uid), "stats")) {
+            return;
+        }
+        CompletionBuffer.flush(uid);
+        // the primary, since the first read of a user's statistics writes their rows
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            Transaction tx = session.beginTransaction();
+            List<TodoStat> rows = TodoStats.load(session, uid);
+            tx.commit();
+
+            Map<String, TodoStat> byBucket = new HashMap<>();
+            for (TodoStat row : rows) {
+                byBucket.put(row.getId().getBucket(), row);
+            }
+            JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginObject().name("user_id").value(uid);
+            writeCounts(w, byBucket.get(TodoStats.ALL));
+            w.name("by_priority").beginObject();
+            for (String p : new String[] {"HIGH", "MEDIUM", "LOW"}) {
+                w.name(p).beginObject();
+                writeCounts(w, byBucket.get("priority:" + p));
+                w.endObject();
+            }
+            w.endObject().name("by_category").beginArray();
+            for (TodoStat row : rows) {
+                String bucket = row.getId().getBucket();
+                if (!bucket.startsWith("category:") || row.getTotal() == 0) continue;
+                String category = bucket.substring("category:".length());
+                w.beginObject().name("category_id");
+                if ("none".equals(category)) {
+                    w.nullValue();
+                } else {
+                    w.value(Long.parseLong(category));
+                }
+                writeCounts(w, row);
+                w.endObject();
             }
+            w.endArray().endObject().close();
         } finally {
             session.close();
         }
     }
 
+    // GET /api/todos/search?q=&user_id=&limit=: the user's best matching todos from
+    // SearchIndex, then one primary-key query for their current rows
+    @SuppressWarnings("unchecked")
+    private void doSearch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Long uid = AuthFilter.userId(req);
+        String q = req.getParameter("q");
+        int limit;
+        try {
+            if (uid == null) uid = Long.parseLong(req.getParameter("user_id"));
+            String limitParam = req.getParameter("limit");
+            limit = limitParam == null || limitParam.isEmpty() ? DEFAULT_SEARCH_RESULTS
+                    : Math.max(1, Math.min(MAX_SEARCH_RESULTS, Integer.parseInt(limitParam)));
+        } catch (NumberFormatException nfe) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"numeric user_id and limit required\"}"); }
+            return;
+        }
+        if (q == null || q.trim().isEmpty()) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"q required\"}"); }
+            return;
+        }
+        if (!SearchIndex.isReady()) {
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", "5");
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"search index is still being built\"}"); }
+            return;
+        }
+        SearchIndex.Result result = SearchIndex.search(uid, q, limit);
+        Map<Long, TodoView> rows = new HashMap<>();
+        if (!result.hits.isEmpty()) {
+            List<Long> ids = new ArrayList<>();
+            for (SearchIndex.Hit h : result.hits) {
+                ids.add(h.todoId);
+            }
+            Session session = HibernateUtil.getReadSessionFactory(CollectionVersions.todosOf(uid)).openSession();
+            try {
+                long mark = CompletionBuffer.mark();
+                for (TodoView t : (List<TodoView>) session.getNamedQuery("Todo.viewsByIds")
+                        .setParameterList("ids", ids).setReadOnly(true).list()) {
+                    rows.put(t.getId(), CompletionBuffer.overlay(t, mark));
+                }
+            } finally {
+                session.close();
+            }
+        }
+
+        JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginObject()
+                .name("query").value(q)
+                .name("matches").value(result.matches)
+                .name("results").beginArray();
+        for (SearchIndex.Hit h : result.hits) {
+            TodoView t = rows.get(h.todoId);
+            // deleted since the index was read
+            if (t == null) continue;
+            w.beginObject().name("score").value(Math.round(h.score * 1000) / 1000.0).name("todo");
+            writeTodo(w, t);
+            w.endObject();
+        }
+        w.endArray();
+        Map<String, Number> shard = SearchIndex.shardStats(uid);
+        if (shard != null) {
+            w.name("index").beginObject();
+            for (Map.Entry<String, Number> e : shard.entrySet()) {
+                w.name(e.getKey()).value(e.getValue().longValue());
+            }
+            w.endObject();
+        }
+        w.endObject().close();
+    }
+
+    private void writeCounts(JsonWriter w, TodoStat row) throws IOException {
+        long total = row != null ? row.getTotal() : 0;
+        long completed = row != null ? row.getCompleted() : 0;
+        w.name("total").value(total).name("completed").value(completed).name("pending").value(total - completed);
+    }
+
+    // gives the todo its owner's next change version and moves it between the owner's
+    // statistics buckets (before is null for a new todo); todos without an owner are not synced.
+    // versions caches the version per user so a batch uses one per user
+    private void stamp(Session session, Todo t, TodoStats.Snapshot before, Map<Long, Long> versions) {
+        Long userId = userIdOf(t);
+        if (userId != null) {
+            // versionFor takes the user's lock, which TodoStats relies on
+            t.setChangeVersion(versionFor(session, userId, versions));
+            TodoStats.changed(session, userId, before, TodoStats.of(t));
+        }
+    }
+
+    private void tombstone(Session session, Todo t, Map<Long, Long> versions) {
+        Long userId = userIdOf(t);
+        if (userId != null) {
+            session.save(new TodoTombstone(t.getId(), userId, versionFor(session, userId, versions)));
+            TodoStats.changed(session, userId, TodoStats.of(t), null);
+        }
+    }
+
+    // after commit: invalidate the ETags of the global list and of each affected user's list
+    private void todosChanged(Collection<Long> userIds) {
+        for (Long userId : userIds) {
+            CollectionVersions.bump(CollectionVersions.todosOf(userId));
+        }
+        CollectionVersions.bump(CollectionVersions.TODOS);
+    }
+
+    // after commit: make a created or edited todo searchable with its current text
+    private void indexed(TodoView t) {
+        SearchIndex.put(t.getUserId(), t.getId(), t.getTitle(), t.getDescription());
+    }
+
+    // after commit: push a created or updated todo to its owner's open event streams
+    private void published(String event, TodoView t, Map<Long, Long> versions) throws IOException {
+        Long userId = t.getUserId();
+        if (!ChangeFeed.hasSubscribers(userId)) return;
+        ByteArrayOutputStream json = new ByteArrayOutputStream(256);
+        JsonWriter w = JsonWriter.of(json);
+        writeTodo(w, t);
+        w.close();
+        ChangeFeed.publish(userId, event, versions != null ? versions.get(userId) : null, json.toByteArray());
+    }
+
+    private void publishedDelete(Long userId, Long id, Map<Long, Long> versions) {
+        if (!ChangeFeed.hasSubscribers(userId)) return;
+        ChangeFeed.publish(userId, "deleted", versions.get(userId),
+                ("{\"id\":" + id + "}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long versionFor(Session session, Long userId, Map<Long, Long> versions) {
+        Long v = versions.get(userId);
+        if (v == null) {
+            v = ChangeVersions.next(session, userId);
+            versions.put(userId, v);
+        }
+        return v;
+    }
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if ("/batch".equals(req.getPathInfo())) {
+            doBatch(req, resp);
+            return;
+        }
         // support JSON body or form parameters
-        String body = readRequestBody(req);
+        Map<String, String> body = JsonBody.readOrReject(req, resp, "title", "text", "description", "priority", "user_id");
+        if (body == null) return;
         String title = req.getParameter("title");
         String description = req.getParameter("description");
         String priority = req.getParameter("priority");
         String categoryId = req.getParameter("categoryId");
         String userId = req.getParameter("user_id");
         
-        if ((title == null || title.isEmpty()) && body != null && body.length() > 0) {
+        if ((title == null || title.isEmpty()) && !body.isEmpty()) {
             // Extract from JSON body
-            title = extractJsonString(body, "title");
+            title = body.get("title");
             // If title is still null, try "text" for backward compatibility
-            if (title == null) title = extractJsonString(body, "text");
+            if (title == null) title = body.get("text");
             
-            description = extractJsonString(body, "description");
-            priority = extractJsonString(body, "priority");
-            String uid = extractJsonString(body, "user_id");
+            description = body.get("description");
+            priority = body.get("priority");
+            String uid = body.get("user_id");
             if (uid != null) userId = uid;
         }
         
@@ -90,16 +537,24 @@ public class TodoServlet extends HttpServlet {
                 Category c = (Category) session.get(Category.class, Long.parseLong(categoryId));
                 t.setCategory(c);
             }
-            if (userId != null) {
+            Long owner = AuthFilter.userId(req);
+            if (owner != null) {
+                // the token proves the user exists: a proxy is enough, no select
+                t.setUser((User) session.load(User.class, owner));
+            } else if (userId != null) {
                 User u = (User) session.get(User.class, Long.parseLong(userId));
                 t.setUser(u);
             }
+            Map<Long, Long> versions = new HashMap<>();
+            stamp(session, t, null, versions);
             session.save(t);
             tx.commit();
-            try (PrintWriter out = resp.getWriter()) {
-                // return created todo in frontend-friendly shape
-                out.print("{\"id\":" + t.getId() + ",\"text\":\"" + escape(t.getTitle()) + "\",\"title\":\"" + escape(t.getTitle()) + "\",\"description\":\"" + escape(t.getDescription() != null ? t.getDescription() : "") + "\",\"priority\":\"" + escape(t.getPriority() != null ? t.getPriority() : "MEDIUM") + "\",\"is_completed\":" + (t.isCompleted() ? 1 : 0) + ",\"user_id\":" + (t.getUser() != null ? t.getUser().getId() : "null") + "}");
-            }
+            todosChanged(versions.keySet());
+            TodoView created = view(t);
+            indexed(created);
+            published("created", created, versions);
+            // return created todo in frontend-friendly shape
+            writeTodo(resp, created);
         } finally {
             session.close();
         }
@@ -114,14 +569,23 @@ public class TodoServlet extends HttpServlet {
             return;
         }
         Long id = Long.parseLong(path.substring(1));
+        CompletionBuffer.flushTodos(Collections.singleton(id));
         Session session = HibernateUtil.getSessionFactory().openSession();
         try {
             Transaction tx = session.beginTransaction();
             Todo t = (Todo) session.get(Todo.class, id);
+            if (t != null && !owns(req, t)) t = null;
+            Map<Long, Long> versions = new HashMap<>();
             if (t != null) {
+                tombstone(session, t, versions);
                 session.delete(t);
             }
             tx.commit();
+            if (t != null) {
+                todosChanged(versions.keySet());
+                SearchIndex.remove(userIdOf(t), t.getId());
+                publishedDelete(userIdOf(t), t.getId(), versions);
+            }
             resp.setStatus(HttpServletResponse.SC_OK);
             try (PrintWriter out = resp.getWriter()) {
                 out.print("{\"ok\":true}");
@@ -149,115 +613,255 @@ public class TodoServlet extends HttpServlet {
             return;
         }
 
-        String body = readRequestBody(req);
-        System.out.println("TodoServlet.doPut - id=" + id + " body=" + body);
-        Integer completedValue = null;
-        if (body != null && body.length() > 0) {
-            String cstr = extractJsonString(body, "is_completed");
-            // Also check for "completed" for backward compatibility
-            if (cstr == null) {
-                cstr = extractJsonString(body, "completed");
-            }
-            if (cstr != null) {
-                try {
-                    completedValue = Integer.parseInt(cstr);
-                } catch (NumberFormatException ex) {
-                    if ("true".equalsIgnoreCase(cstr) || "false".equalsIgnoreCase(cstr)) {
-                        completedValue = "true".equalsIgnoreCase(cstr) ? 1 : 0;
-                    }
-                }
-            }
+        Map<String, String> body = JsonBody.readOrReject(req, resp, "is_completed", "completed");
+        if (body == null) return;
+        Integer completedValue = parseCompleted(body);
+        LOG.debug("PUT todo {} completed={}", id, completedValue);
+        if (completedValue != null && CompletionBuffer.enabled()) {
+            toggleBehind(req, resp, id, completedValue != 0);
+            return;
         }
 
         Session session = HibernateUtil.getSessionFactory().openSession();
         try {
             Transaction tx = session.beginTransaction();
             Todo t = (Todo) session.get(Todo.class, id);
-            if (t == null) {
+            if (t == null || !owns(req, t)) {
                 tx.commit();
                 resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"todo not found\"}"); }
                 return;
             }
 
-            String responseJson = "{\"ok\":false}";
+            TodoView updated;
+            Map<Long, Long> versions = new HashMap<>();
             if (completedValue != null) {
-                System.out.println("Setting completed for todo id=" + id + " to " + (completedValue != 0));
+                TodoStats.Snapshot before = TodoStats.of(t);
                 t.setCompleted(completedValue != 0);
+                stamp(session, t, before, versions);
                 session.update(t);
                 // force flush so DB is updated before we respond
                 session.flush();
-                // build updated todo JSON
-                responseJson = "{" +
-                        "\"id\":" + t.getId() + "," +
-                        "\"text\":\"" + escape(t.getTitle()) + "\"," +
-                        "\"title\":\"" + escape(t.getTitle()) + "\"," +
-                        "\"description\":\"" + escape(t.getDescription() != null ? t.getDescription() : "") + "\"," +
-                        "\"priority\":\"" + escape(t.getPriority() != null ? t.getPriority() : "MEDIUM") + "\"," +
-                        "\"is_completed\":" + (t.isCompleted() ? 1 : 0) + "," +
-                        "\"user_id\":" + (t.getUser() != null ? t.getUser().getId() : "null") +
-                        "}";
+                updated = view(t);
             } else {
-                System.out.println("No completed value provided for todo id=" + id);
                 // still return current todo state
-                responseJson = "{" +
-                        "\"id\":" + t.getId() + "," +
-                        "\"text\":\"" + escape(t.getTitle()) + "\"," +
-                        "\"title\":\"" + escape(t.getTitle()) + "\"," +
-                        "\"description\":\"" + escape(t.getDescription() != null ? t.getDescription() : "") + "\"," +
-                        "\"priority\":\"" + escape(t.getPriority() != null ? t.getPriority() : "MEDIUM") + "\"," +
-                        "\"is_completed\":" + (t.isCompleted() ? 1 : 0) + "," +
-                        "\"user_id\":" + (t.getUser() != null ? t.getUser().getId() : "null") +
-                        "}";
+                updated = CompletionBuffer.overlay(view(t), CompletionBuffer.mark());
             }
 
             tx.commit();
+            if (completedValue != null) {
+                todosChanged(versions.keySet());
+                published("updated", updated, versions);
+            }
             resp.setStatus(HttpServletResponse.SC_OK);
-            try (PrintWriter out = resp.getWriter()) {
-                out.print(responseJson);
+            writeTodo(resp, updated);
+        } finally {
+            session.close();
+        }
+    }
+
+    // write-behind toggle: one primary-key read for the ownership check, the
+    // write itself is left to CompletionBuffer
+    private void toggleBehind(HttpServletRequest req, HttpServletResponse resp, Long id, boolean completed) throws IOException {
+        TodoView t;
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            t = (TodoView) session.getNamedQuery("Todo.viewById")
+                    .setParameter("id", id).setReadOnly(true).uniqueResult();
+        } finally {
+            session.close();
+        }
+        if (t == null || !owns(req, t.getUserId())) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"todo not found\"}"); }
+            return;
+        }
+        CompletionBuffer.toggle(id, t.getUserId(), completed);
+        // lists show the buffered value from now on
+        todosChanged(t.getUserId() != null ? Collections.singleton(t.getUserId()) : Collections.<Long>emptySet());
+        TodoView updated = new TodoView(t.getId(), t.getTitle(), t.getDescription(), t.getPriority(), completed, t.getUserId());
+        // no change version yet, CompletionBuffer assigns it when writing
+        published("updated", updated, null);
+        resp.setStatus(HttpServletResponse.SC_OK);
+        writeTodo(resp, updated);
+    }
+
+    // someone else's todo looks like a missing one to an authenticated caller
+    private boolean owns(HttpServletRequest req, Todo t) {
+        return owns(req, userIdOf(t));
+    }
+
+    private boolean owns(HttpServletRequest req, Long ownerId) {
+        Long authUser = AuthFilter.userId(req);
+        return authUser == null || authUser.equals(ownerId);
+    }
+
+    // is_completed (or legacy "completed") as 0/1; accepts numbers and true/false
+    private Integer parseCompleted(Map<String, String> body) {
+        String cstr = body.get("is_completed");
+        // Also check for "completed" for backward compatibility
+        if (cstr == null) {
+            cstr = body.get("completed");
+        }
+        if (cstr == null) return null;
+        try {
+            return Integer.parseInt(cstr);
+        } catch (NumberFormatException ex) {
+            if ("true".equalsIgnoreCase(cstr) || "false".equalsIgnoreCase(cstr)) {
+                return "true".equalsIgnoreCase(cstr) ? 1 : 0;
+            }
+            return null;
+        }
+    }
+
+    // POST /api/todos/batch with a JSON array of operations, e.g.
+    // [{"op":"create","ref":"tmp-1","title":"..","user_id":1},{"op":"update","id":5,"is_completed":1},{"op":"delete","id":7}]
+    // Everything runs in one transaction and the statements go out as JDBC batches.
+    // The response has one result per operation, in order; "ref" is echoed so
+    // offline clients can map their temporary ids to the created ones.
+    @SuppressWarnings("unchecked")
+    private void doBatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json;charset=UTF-8");
+        List<Map<String, String>> ops;
+        try {
+            ops = JsonBody.readArray(req, MAX_BATCH_BYTES, "op", "ref", "id", "title", "text", "description",
+                    "priority", "user_id", "categoryId", "category_id", "is_completed", "completed");
+        } catch (JsonBody.InvalidBodyException ex) {
+            JsonBody.reject(resp, ex);
+            return;
+        }
+        if (ops.size() > MAX_BATCH_OPS) {
+            resp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"at most " + MAX_BATCH_OPS + " operations per batch\"}"); }
+            return;
+        }
+
+        Long owner = AuthFilter.userId(req);
+        Object[] results = new Object[ops.size()];
+        // todos removed by each delete op, for the search index
+        Todo[] removed = new Todo[ops.size()];
+        // one change version per user for the whole batch, it commits atomically
+        Map<Long, Long> versions = new HashMap<>();
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            // load every todo the batch updates or deletes with one query
+            List<Long> ids = new ArrayList<>();
+            for (Map<String, String> op : ops) {
+                try {
+                    Long id = parseId(op.get("id"));
+                    if (id != null) ids.add(id);
+                } catch (NumberFormatException nfe) {
+                    // reported as "invalid id" for that item below
+                }
             }
+            // a buffered toggle written later would undo this batch's changes
+            CompletionBuffer.flushTodos(ids);
+            Map<Long, Todo> existing = new HashMap<>();
+            if (!ids.isEmpty()) {
+                Query q = session.getNamedQuery(owner != null ? "Todo.byIdsOfUser" : "Todo.byIds")
+                        .setParameterList("ids", ids);
+                if (owner != null) q.setParameter("uid", owner);
+                for (Todo t : (List<Todo>) q.list()) {
+                    existing.put(t.getId(), t);
+                }
+            }
+
+            for (int i = 0; i < ops.size(); i++) {
+                Map<String, String> op = ops.get(i);
+                String kind = op.get("op");
+                try {
+                    if ("create".equals(kind)) {
+                        String title = op.get("title") != null ? op.get("title") : op.get("text");
+                        if (title == null || title.isEmpty()) {
+                            results[i] = "title required";
+                            continue;
+                        }
+                        Todo t = new Todo(title, op.get("description"), op.get("priority"));
+                        Long categoryId = parseId(op.get("categoryId") != null ? op.get("categoryId") : op.get("category_id"));
+                        if (categoryId != null) t.setCategory((Category) session.get(Category.class, categoryId));
+                        if (owner != null) {
+                            t.setUser((User) session.load(User.class, owner));
+                        } else {
+                            Long userId = parseId(op.get("user_id"));
+                            if (userId != null) t.setUser((User) session.get(User.class, userId));
+                        }
+                        stamp(session, t, null, versions);
+                        session.save(t);
+                        results[i] = t;
+                    } else if ("update".equals(kind) || "delete".equals(kind)) {
+                        Todo t = existing.get(parseId(op.get("id")));
+                        if (t == null) {
+                            results[i] = "todo not found";
+                        } else if ("delete".equals(kind)) {
+                            tombstone(session, t, versions);
+                            session.delete(t);
+                            existing.remove(t.getId());
+                            removed[i] = t;
+                            results[i] = Boolean.TRUE;
+                        } else {
+                            TodoStats.Snapshot before = TodoStats.of(t);
+                            Integer completed = parseCompleted(op);
+                            if (completed != null) t.setCompleted(completed != 0);
+                            String title = op.get("title") != null ? op.get("title") : op.get("text");
+                            if (title != null && !title.isEmpty()) t.setTitle(title);
+                            if (op.containsKey("description")) t.setDescription(op.get("description"));
+                            if (op.containsKey("priority")) t.setPriority(op.get("priority"));
+                            stamp(session, t, before, versions);
+                            results[i] = t;
+                        }
+                    } else {
+                        results[i] = "unknown op";
+                    }
+                } catch (NumberFormatException nfe) {
+                    results[i] = "invalid id";
+                }
+            }
+            tx.commit();
+        } catch (RuntimeException ex) {
+            if (tx != null && tx.isActive()) tx.rollback();
+            resp.setStatus(HttpServletResponse.SC_CONFLICT);
+            try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"batch failed, no changes applied\"}"); }
+            return;
         } finally {
             session.close();
         }
+
+        // committed: from here on a failure is not the batch's, as in doPost and doDelete
+        todosChanged(versions.keySet());
+        TodoView[] views = new TodoView[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            if (results[i] instanceof Todo) {
+                views[i] = view((Todo) results[i]);
+                indexed(views[i]);
+                published("create".equals(ops.get(i).get("op")) ? "created" : "updated", views[i], versions);
+            } else if (removed[i] != null) {
+                SearchIndex.remove(userIdOf(removed[i]), removed[i].getId());
+                publishedDelete(userIdOf(removed[i]), removed[i].getId(), versions);
+            }
+        }
+
+        JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginArray();
+        for (int i = 0; i < ops.size(); i++) {
+            Object r = results[i];
+            w.beginObject().name("index").value(i).name("op").value(ops.get(i).get("op"));
+            if (ops.get(i).get("ref") != null) w.name("ref").value(ops.get(i).get("ref"));
+            if (r instanceof String) {
+                w.name("ok").value(false).name("error").value((String) r);
+            } else {
+                w.name("ok").value(true);
+                if (views[i] != null) {
+                    w.name("todo");
+                    writeTodo(w, views[i]);
+                }
+            }
+            w.endObject();
+        }
+        w.endArray().close();
     }
 
-    // small helpers to read body and extract simple JSON values without extra libs
-    private String readRequestBody(HttpServletRequest req) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        String line;
-        java.io.BufferedReader reader = req.getReader();
-        while ((line = reader.readLine()) != null) {
-            sb.append(line);
-        }
-        return sb.toString();
-    }
-
-    private String extractJsonString(String json, String key) {
-        if (json == null) return null;
-    int idx = json.indexOf("\"" + key + "\"");
-    if (idx == -1) return null;
-    int colon = json.indexOf(':', idx + key.length());
-    if (colon == -1) return null;
-    int start = colon + 1;
-        // skip whitespace
-        while (start < json.length() && Character.isWhitespace(json.charAt(start))) start++;
-        if (start >= json.length()) return null;
-        char c = json.charAt(start);
-        if (c == '"') {
-            start++;
-            int end = json.indexOf('"', start);
-            if (end == -1) return null;
-            return json.substring(start, end);
-        } else {
-            // number or boolean
-            int end = start;
-            while (end < json.length() && ",}] ".indexOf(json.charAt(end)) == -1) end++;
-            return json.substring(start, end).trim();
-        }
-    }
-
-    private String escape(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    private static Long parseId(String s) {
+        return s == null || s.isEmpty() ? null : Long.valueOf(s);
     }
 }
@@ -1,41 +1,40 @@
 package controller;
 
 import entity.User;
+import util.AuthCache;
+import util.AuthToken;
+import util.CollectionVersions;
 import util.HibernateUtil;
+import util.JsonBody;
+import util.JsonWriter;
+import util.PasswordHasher;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
+import java.util.Map;
 import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.hibernate.exception.ConstraintViolationException;
 
-public class UserServlet extends HttpServlet {
+public class UserServlet extends AsyncServlet {
     @Override
     @SuppressWarnings("unchecked")
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         resp.setContentType("application/json;charset=UTF-8");
-        Session session = HibernateUtil.getSessionFactory().openSession();
+        if (CollectionVersions.notModified(req, resp, CollectionVersions.USERS)) {
+            return;
+        }
+        Session session = HibernateUtil.getReadSessionFactory(CollectionVersions.USERS).openSession();
         try {
-            List<User> users = (List<User>) session.createQuery("from User").list();
-            StringBuilder sb = new StringBuilder();
-            sb.append('[');
-            for (int i = 0; i < users.size(); i++) {
-                User u = users.get(i);
-                sb.append('{')
-                        .append("\"id\":").append(u.getId()).append(',')
-                        .append("\"username\":\"").append(escape(u.getUsername())).append("\"").append(',')
-                        .append("\"email\":\"").append(escape(u.getEmail())).append("\"")
-                        .append('}');
-                if (i < users.size() - 1) sb.append(',');
-            }
-            sb.append(']');
-            try (PrintWriter out = resp.getWriter()) {
-                out.print(sb.toString());
+            List<User> users = (List<User>) session.getNamedQuery("User.all").list();
+            JsonWriter w = JsonWriter.of(resp.getOutputStream()).beginArray();
+            for (User u : users) {
+                writeUser(w, u, true);
             }
+            w.endArray().close();
         } finally {
             session.close();
         }
@@ -47,37 +46,46 @@ public class UserServlet extends HttpServlet {
         resp.setContentType("application/json;charset=UTF-8");
         // authentication endpoint: POST /api/users/auth with JSON { email, password }
         if (path != null && path.equals("/auth")) {
-            String body = readRequestBody(req);
+            Map<String, String> body = JsonBody.readOrReject(req, resp, "email", "password");
+            if (body == null) return;
             String email = req.getParameter("email");
             String password = req.getParameter("password");
-            if ((email == null || password == null) && body != null && body.length() > 0) {
-                email = extractJsonString(body, "email");
-                password = extractJsonString(body, "password");
+            if ((email == null || password == null) && !body.isEmpty()) {
+                email = body.get("email");
+                password = body.get("password");
             }
             if (email == null || password == null) {
-                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                return;
-            }
-            Session session = HibernateUtil.getSessionFactory().openSession();
-            try {
-                List<User> users = (List<User>) session.createQuery("from User where email = :e")
-                        .setParameter("e", email).list();
-                if (users.isEmpty()) {
+                // a token from an earlier login (checked by AuthFilter) stands in for the credentials
+                Long userId = AuthFilter.userId(req);
+                if (userId == null) {
+                    resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    return;
+                }
+                AuthCache.Principal p = profile(userId);
+                if (p == null) {
                     resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
                     try (PrintWriter out = resp.getWriter()) { out.print("{\"ok\":false}"); }
                     return;
                 }
-                User u = users.get(0);
-                if (u.getPassword() != null && u.getPassword().equals(password)) {
-                    try (PrintWriter out = resp.getWriter()) {
-                        out.print("{\"id\":" + u.getId() + ",\"username\":\"" + escape(u.getUsername()) + "\",\"email\":\"" + escape(u.getEmail()) + "\"}");
-                    }
-                } else {
+                writeAuth(resp, p, AuthToken.issue(p.id));
+                return;
+            }
+            AuthCache.Principal cached = AuthCache.verified(email, password);
+            if (cached != null) {
+                writeAuth(resp, cached, AuthToken.issue(cached.id));
+                return;
+            }
+            try {
+                AuthCache.Principal p = authenticate(email, password);
+                if (p == null) {
                     resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
                     try (PrintWriter out = resp.getWriter()) { out.print("{\"ok\":false}"); }
+                    return;
                 }
-            } finally {
-                session.close();
+                AuthCache.rememberVerified(p, password);
+                writeAuth(resp, p, AuthToken.issue(p.id));
+            } catch (PasswordHasher.BusyException ex) {
+                busy(resp);
             }
             return;
         }
@@ -86,11 +94,12 @@ public class UserServlet extends HttpServlet {
         String username = req.getParameter("username");
         String password = req.getParameter("password");
         String email = req.getParameter("email");
-        String body = readRequestBody(req);
-        if ((username == null || username.isEmpty()) && body != null && body.length() > 0) {
-            username = extractJsonString(body, "username");
-            password = extractJsonString(body, "password");
-            email = extractJsonString(body, "email");
+        Map<String, String> body = JsonBody.readOrReject(req, resp, "username", "password", "email");
+        if (body == null) return;
+        if ((username == null || username.isEmpty()) && !body.isEmpty()) {
+            username = body.get("username");
+            password = body.get("password");
+            email = body.get("email");
         }
         if (username == null || username.isEmpty() || password == null || password.isEmpty()) {
             resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -100,16 +109,24 @@ public class UserServlet extends HttpServlet {
         if (email == null || email.isEmpty()) {
             email = username + "@local";
         }
+        String hash;
+        try {
+            hash = PasswordHasher.hash(password);
+        } catch (PasswordHasher.BusyException ex) {
+            busy(resp);
+            return;
+        }
         Session session = HibernateUtil.getSessionFactory().openSession();
         try {
             Transaction tx = session.beginTransaction();
-            User u = new User(username, password, email);
+            User u = new User(username, hash, email);
                 try {
                     session.save(u);
                     tx.commit();
-                    try (PrintWriter out = resp.getWriter()) {
-                        out.print("{\"id\":" + u.getId() + ",\"username\":\"" + escape(u.getUsername()) + "\"}");
-                    }
+                    CollectionVersions.bump(CollectionVersions.USERS);
+                    JsonWriter w = JsonWriter.of(resp.getOutputStream());
+                    writeUser(w, u, false);
+                    w.close();
                 } catch (Exception ex) {
                     tx.rollback();
                     // if this was a constraint violation (duplicate username), return 409 with helpful message
@@ -130,41 +147,74 @@ public class UserServlet extends HttpServlet {
         }
     }
 
-    // small helpers to read body and extract simple JSON values without extra libs
-    private String readRequestBody(HttpServletRequest req) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        String line;
-        java.io.BufferedReader reader = req.getReader();
-        while ((line = reader.readLine()) != null) {
-            sb.append(line);
+    // the user for a correct email/password, null otherwise; upgrades plain-text
+    // and under-iterated hashes in place after a successful check
+    private AuthCache.Principal authenticate(String email, String password) throws PasswordHasher.BusyException {
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            // users.email is unique, so this is a single index lookup
+            User u = (User) session.getNamedQuery("User.byEmail")
+                    .setParameter("e", email).uniqueResult();
+            if (u == null) {
+                PasswordHasher.verifyNothing(password);
+                return null;
+            }
+            if (!PasswordHasher.verify(password, u.getPassword())) {
+                return null;
+            }
+            if (PasswordHasher.needsRehash(u.getPassword())) {
+                String hash = PasswordHasher.hash(password);
+                Transaction tx = session.beginTransaction();
+                try {
+                    u.setPassword(hash);
+                    tx.commit();
+                } catch (RuntimeException ex) {
+                    // the login itself is still valid, the upgrade is retried next time
+                    tx.rollback();
+                }
+            }
+            return new AuthCache.Principal(u.getId(), u.getUsername(), u.getEmail());
+        } finally {
+            session.close();
         }
-        return sb.toString();
     }
 
-    private String extractJsonString(String json, String key) {
-        if (json == null) return null;
-        int idx = json.indexOf("\"" + key + "\"");
-        if (idx == -1) return null;
-        int colon = json.indexOf(':', idx + key.length());
-        if (colon == -1) return null;
-        int start = colon + 1;
-        while (start < json.length() && Character.isWhitespace(json.charAt(start))) start++;
-        if (start >= json.length()) return null;
-        char c = json.charAt(start);
-        if (c == '"') {
-            start++;
-            int end = json.indexOf('"', start);
-            if (end == -1) return null;
-            return json.substring(start, end);
-        } else {
-            int end = start;
-            while (end < json.length() && ",}] ".indexOf(json.charAt(end)) == -1) end++;
-            return json.substring(start, end).trim();
+    // id, username and email for a token login; from AuthCache when the user logged in recently
+    private AuthCache.Principal profile(Long userId) {
+        AuthCache.Principal p = AuthCache.byId(userId);
+        if (p != null) return p;
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            User u = (User) session.get(User.class, userId);
+            if (u == null) return null;
+            p = new AuthCache.Principal(u.getId(), u.getUsername(), u.getEmail());
+            AuthCache.remember(p);
+            return p;
+        } finally {
+            session.close();
         }
     }
 
-    private String escape(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    private void writeAuth(HttpServletResponse resp, AuthCache.Principal p, String token) throws IOException {
+        JsonWriter.of(resp.getOutputStream()).beginObject()
+                .name("id").value(p.id)
+                .name("username").value(p.username != null ? p.username : "")
+                .name("email").value(p.email != null ? p.email : "")
+                .name("token").value(token)
+                .endObject().close();
+    }
+
+    private static void busy(HttpServletResponse resp) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setHeader("Retry-After", "1");
+        try (PrintWriter out = resp.getWriter()) { out.print("{\"error\":\"server busy\"}"); }
+    }
+
+    private void writeUser(JsonWriter w, User u, boolean withEmail) throws IOException {
+        w.beginObject()
+                .name("id").value(u.getId())
+                .name("username").value(u.getUsername() != null ? u.getUsername() : "");
+        if (withEmail) w.name("email").value(u.getEmail() != null ? u.getEmail() : "");
+        w.endObject();
     }
 }
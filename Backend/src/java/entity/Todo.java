@@ -8,17 +8,48 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
 
 @Entity
-@Table(name = "todos")
+// parsed once when the SessionFactory is built instead of on first use
+@NamedQueries({
+	@NamedQuery(name = "Todo.viewById", query = TodoView.SELECT + "from Todo t where t.id = :id"),
+	@NamedQuery(name = "Todo.viewsByIds", query = TodoView.SELECT + "from Todo t where t.id in (:ids)"),
+	@NamedQuery(name = "Todo.viewsOfUser", query = TodoView.SELECT + "from Todo t where t.user.id = :uid order by t.id"),
+	@NamedQuery(name = "Todo.viewsChangedSince", query = TodoView.SELECT
+			+ "from Todo t where t.user.id = :uid and t.changeVersion > :since order by t.id"),
+	@NamedQuery(name = "Todo.byIds", query = "from Todo t where t.id in (:ids)"),
+	@NamedQuery(name = "Todo.byIdsOfUser", query = "from Todo t where t.id in (:ids) and t.user.id = :uid"),
+	@NamedQuery(name = "Todo.completionByIds", query = "select t.id, t.completed, t.priority, t.category.id, t.user.id"
+			+ " from Todo t where t.id in (:ids)"),
+	@NamedQuery(name = "Todo.statGroupsOfUser", query = "select t.completed, t.priority, t.category.id, count(t)"
+			+ " from Todo t where t.user.id = :uid group by t.completed, t.priority, t.category.id"),
+	@NamedQuery(name = "Todo.searchRows", query = "select t.id, t.user.id, t.title, t.description"
+			+ " from Todo t where t.user is not null")
+})
+// every list query is per user, so each index leads with user_id; see controller.TodoQuery
+@Table(name = "todos", indexes = {
+	@Index(name = "idx_todos_user_version", columnList = "user_id, change_version"),
+	@Index(name = "idx_todos_user_completed_created", columnList = "user_id, is_completed, created_at"),
+	@Index(name = "idx_todos_user_created", columnList = "user_id, created_at"),
+	@Index(name = "idx_todos_user_priority", columnList = "user_id, priority"),
+	@Index(name = "idx_todos_user_category", columnList = "user_id, category_id")
+})
 public class Todo implements Serializable {
 	private static final long serialVersionUID = 1L;
 
+	// ids come from a pooled table generator instead of AUTO_INCREMENT so Hibernate
+	// knows them before the INSERT and can send todo inserts as JDBC batches
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@TableGenerator(name = "todo_ids", table = "hibernate_sequences", pkColumnName = "sequence_name",
+			valueColumnName = "next_val", pkColumnValue = "todos", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "todo_ids")
 	private Long id;
 
 	@Column(nullable = false)
@@ -36,6 +67,10 @@ public class Todo implements Serializable {
 	@Column(name = "created_at")
 	private Date createdAt = new Date();
 
+	// owner's change version at the last write, see TodoVersion
+	@Column(name = "change_version")
+	private Long changeVersion;
+
 	@ManyToOne(fetch = FetchType.LAZY)
 	@JoinColumn(name = "category_id")
 	private Category category;
@@ -115,6 +150,14 @@ public class Todo implements Serializable {
 		this.createdAt = createdAt;
 	}
 
+	public Long getChangeVersion() {
+		return changeVersion;
+	}
+
+	public void setChangeVersion(Long changeVersion) {
+		this.changeVersion = changeVersion;
+	}
+
 	public Category getCategory() {
 		return category;
 	}
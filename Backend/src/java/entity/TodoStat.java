@@ -0,0 +1,92 @@
+package entity;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+// One counter row of a user's todo statistics. The bucket is "all",
+// "priority:<LOW|MEDIUM|HIGH>" or "category:<id|none>"; see util.TodoStats,
+// which keeps the rows in step with every todo write.
+@Entity
+@NamedQuery(name = "TodoStat.ofUser", query = "from TodoStat s where s.id.userId = :uid")
+@Table(name = "todo_stats")
+public class TodoStat implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@EmbeddedId
+	private Key id;
+
+	@Column(nullable = false)
+	private long total;
+
+	@Column(nullable = false)
+	private long completed;
+
+	public TodoStat() {}
+
+	public TodoStat(Long userId, String bucket) {
+		this.id = new Key(userId, bucket);
+	}
+
+	@Embeddable
+	public static class Key implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		@Column(name = "user_id")
+		private Long userId;
+
+		@Column(length = 40)
+		private String bucket;
+
+		public Key() {}
+
+		public Key(Long userId, String bucket) {
+			this.userId = userId;
+			this.bucket = bucket;
+		}
+
+		public Long getUserId() {
+			return userId;
+		}
+
+		public String getBucket() {
+			return bucket;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return userId.equals(k.userId) && bucket.equals(k.bucket);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * userId.hashCode() + bucket.hashCode();
+		}
+	}
+
+	public Key getId() {
+		return id;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public void setTotal(long total) {
+		this.total = total;
+	}
+
+	public long getCompleted() {
+		return completed;
+	}
+
+	public void setCompleted(long completed) {
+		this.completed = completed;
+	}
+}
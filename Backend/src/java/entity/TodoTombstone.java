@@ -0,0 +1,58 @@
+package entity;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+// Marker left behind by a deleted todo so delta sync can tell clients to drop it.
+@Entity
+@NamedQuery(name = "TodoTombstone.deletedSince", query = "select tb.todoId from TodoTombstone tb"
+		+ " where tb.userId = :uid and tb.changeVersion > :since")
+@Table(name = "todo_tombstones", indexes = {
+	@Index(name = "idx_tombstones_user_version", columnList = "user_id, change_version")
+})
+public class TodoTombstone implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name = "todo_id")
+	private Long todoId;
+
+	@Column(name = "user_id", nullable = false)
+	private Long userId;
+
+	@Column(name = "change_version", nullable = false)
+	private long changeVersion;
+
+	@Column(name = "deleted_at")
+	private Date deletedAt = new Date();
+
+	public TodoTombstone() {}
+
+	public TodoTombstone(Long todoId, Long userId, long changeVersion) {
+		this.todoId = todoId;
+		this.userId = userId;
+		this.changeVersion = changeVersion;
+	}
+
+	public Long getTodoId() {
+		return todoId;
+	}
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public long getChangeVersion() {
+		return changeVersion;
+	}
+
+	public Date getDeletedAt() {
+		return deletedAt;
+	}
+}
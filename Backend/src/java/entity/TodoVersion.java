@@ -0,0 +1,44 @@
+package entity;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+// Per-user change counter for delta sync. Every todo write bumps the row of
+// its owner while holding a row lock, so versions of one user commit in order.
+@Entity
+@Table(name = "todo_versions")
+public class TodoVersion implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name = "user_id")
+	private Long userId;
+
+	@Column(nullable = false)
+	private long version;
+
+	public TodoVersion() {}
+
+	public TodoVersion(Long userId) {
+		this.userId = userId;
+	}
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+}
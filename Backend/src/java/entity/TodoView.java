@@ -0,0 +1,52 @@
+package entity;
+
+import java.io.Serializable;
+
+// Flat read model of a todo holding only the columns the JSON responses need.
+// Filled by "select new entity.TodoView(...)" so listing todos is one SQL
+// statement and never initializes the lazy user association.
+public class TodoView implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final String SELECT = "select new entity.TodoView(t.id, t.title, t.description, t.priority, t.completed, t.user.id) ";
+
+	private final Long id;
+	private final String title;
+	private final String description;
+	private final String priority;
+	private final boolean completed;
+	private final Long userId;
+
+	public TodoView(Long id, String title, String description, String priority, Boolean completed, Long userId) {
+		this.id = id;
+		this.title = title;
+		this.description = description;
+		this.priority = priority;
+		this.completed = completed != null && completed.booleanValue();
+		this.userId = userId;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public String getPriority() {
+		return priority;
+	}
+
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	public Long getUserId() {
+		return userId;
+	}
+}
@@ -9,10 +9,19 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NamedQueries({
+	@NamedQuery(name = "User.all", query = "from User"),
+	@NamedQuery(name = "User.byEmail", query = "from User u where u.email = :e")
+})
 @Table(name = "users")
 public class User implements Serializable {
 	private static final long serialVersionUID = 1L;
@@ -27,7 +36,8 @@ public class User implements Serializable {
 	@Column(nullable = false)
 	private String password;
 
-	@Column
+	// unique index: /api/users/auth looks users up by email
+	@Column(unique = true)
 	private String email;
 
 	@OneToMany(mappedBy = "user", cascade = CascadeType.ALL, orphanRemoval = true)
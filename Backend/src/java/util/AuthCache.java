@@ -0,0 +1,137 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Bounded in-memory caches for /api/users/auth. A verified login is kept as a
+// peppered SHA-256 of the password, so repeating it skips both the database
+// and PBKDF2; a login by bearer token finds the user's profile by id here.
+// Both maps are LRU with a TTL and live only in this JVM.
+public final class AuthCache {
+    private static final int MAX_CREDENTIALS = 10000;
+    private static final int MAX_USERS = 50000;
+    private static final long CREDENTIAL_TTL = TimeUnit.MINUTES.toMillis(10);
+    private static final long USER_TTL = TimeUnit.HOURS.toMillis(1);
+
+    private static final SecureRandom random = new SecureRandom();
+    // per-JVM secret so a heap dump of the cache is not a table of unsalted password hashes
+    private static final byte[] PEPPER = randomBytes(32);
+
+    private static final Lru<String, Credential> credentials = new Lru<>(MAX_CREDENTIALS, CREDENTIAL_TTL);
+    private static final Lru<Long, Principal> users = new Lru<>(MAX_USERS, USER_TTL);
+
+    public static final class Principal {
+        public final Long id;
+        public final String username;
+        public final String email;
+
+        public Principal(Long id, String username, String email) {
+            this.id = id;
+            this.username = username;
+            this.email = email;
+        }
+    }
+
+    private static final class Credential {
+        final Principal user;
+        final byte[] digest;
+
+        Credential(Principal user, byte[] digest) {
+            this.user = user;
+            this.digest = digest;
+        }
+    }
+
+    private AuthCache() {}
+
+    // the user when this email/password pair was verified recently, otherwise null
+    public static Principal verified(String email, String password) {
+        Credential c = credentials.get(email);
+        if (c == null || !MessageDigest.isEqual(c.digest, digest(password))) return null;
+        return c.user;
+    }
+
+    public static void rememberVerified(Principal user, String password) {
+        credentials.put(user.email, new Credential(user, digest(password)));
+        remember(user);
+    }
+
+    public static void forget(String email) {
+        credentials.remove(email);
+    }
+
+    public static void remember(Principal user) {
+        users.put(user.id, user);
+    }
+
+    public static Principal byId(Long id) {
+        return id == null ? null : users.get(id);
+    }
+
+    private static byte[] digest(String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(PEPPER);
+            return md.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] randomBytes(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    // access-ordered LinkedHashMap that drops the least recently used entry past maxSize
+    private static final class Lru<K, V> {
+        private final long ttlMillis;
+        private final LinkedHashMap<K, Expiring<V>> map;
+
+        Lru(final int maxSize, long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+            this.map = new LinkedHashMap<K, Expiring<V>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Expiring<V>> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized V get(K key) {
+            Expiring<V> e = map.get(key);
+            if (e == null) return null;
+            if (e.expiresAt < System.currentTimeMillis()) {
+                map.remove(key);
+                return null;
+            }
+            return e.value;
+        }
+
+        synchronized void put(K key, V value) {
+            map.put(key, new Expiring<>(value, System.currentTimeMillis() + ttlMillis));
+        }
+
+        synchronized void remove(K key) {
+            map.remove(key);
+        }
+    }
+
+    private static final class Expiring<V> {
+        final V value;
+        final long expiresAt;
+
+        Expiring(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Self-contained bearer tokens: base64url("<userId>.<expiresAtSeconds>") + "." +
+// base64url(HMAC-SHA256 of that payload). Checking one needs only the secret,
+// no database or cache lookup, so any instance sharing the secret accepts it.
+// There is no fallback key: until configure() is given a secret, no token is
+// issued and none verifies.
+public final class AuthToken {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    // the HMAC-SHA256 block is 64 bytes; a key under the 32-byte output size is guessable offline
+    private static final int MIN_SECRET_BYTES = 32;
+
+    private static volatile SecretKeySpec key;
+    private static volatile long ttlSeconds = TimeUnit.HOURS.toSeconds(12);
+
+    private AuthToken() {}
+
+    // refuses a missing or short secret, so a deployment without one fails to start
+    public static void configure(String secret, long ttlHours) {
+        byte[] bytes = secret != null ? secret.trim().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (bytes.length < MIN_SECRET_BYTES) {
+            throw new IllegalArgumentException("todo.auth.tokenSecret must be set to at least " + MIN_SECRET_BYTES
+                    + " bytes, e.g. the output of `openssl rand -base64 32`, and be the same on every instance");
+        }
+        key = new SecretKeySpec(bytes, ALGORITHM);
+        if (ttlHours > 0) ttlSeconds = TimeUnit.HOURS.toSeconds(ttlHours);
+    }
+
+    public static boolean isConfigured() {
+        return key != null;
+    }
+
+    public static String issue(long userId) {
+        if (key == null) throw new IllegalStateException("todo.auth.tokenSecret is not configured");
+        long expires = System.currentTimeMillis() / 1000 + ttlSeconds;
+        String payload = ENCODER.encodeToString((userId + "." + expires).getBytes(StandardCharsets.US_ASCII));
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    // the user id of a well-formed, correctly signed and unexpired token, otherwise null
+    public static Long verify(String token) {
+        if (token == null || key == null) return null;
+        int dot = token.indexOf('.');
+        if (dot <= 0 || dot != token.lastIndexOf('.')) return null;
+        String payload = token.substring(0, dot);
+        try {
+            byte[] sig = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+            if (!MessageDigest.isEqual(sig, sign(payload))) return null;
+            String[] parts = new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.US_ASCII).split("\\.");
+            if (parts.length != 2) return null;
+            if (Long.parseLong(parts[1]) < System.currentTimeMillis() / 1000) return null;
+            return Long.valueOf(parts[0]);
+        } catch (IllegalArgumentException ex) {
+            // bad base64 or numbers
+            return null;
+        }
+    }
+
+    private static byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
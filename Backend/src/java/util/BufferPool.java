@@ -0,0 +1,29 @@
+package util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Reuses the 8 KB byte buffers JsonWriter and TodoColumns encode responses
+// into. A buffer is borrowed for one response and released when its writer
+// is closed, so the number in use follows the responses being written, not
+// the number of threads: a per-thread buffer would be allocated afresh for
+// every virtual thread. A buffer that is never released (the response
+// failed half-way) is simply collected, and the pool refills by allocating.
+public final class BufferPool {
+    public static final int BUFFER_SIZE = 8192;
+    private static final int SIZE = Runtime.getRuntime().availableProcessors() * 8;
+
+    private static final BlockingQueue<byte[]> idle = new ArrayBlockingQueue<>(SIZE);
+
+    private BufferPool() {}
+
+    public static byte[] borrow() {
+        byte[] b = idle.poll();
+        return b != null ? b : new byte[BUFFER_SIZE];
+    }
+
+    public static void release(byte[] b) {
+        // past SIZE idle buffers the extra one is left to the collector
+        idle.offer(b);
+    }
+}
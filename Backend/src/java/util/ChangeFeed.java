@@ -0,0 +1,217 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-process fan-out of todo changes to the open event streams of their owner
+// (GET /api/todos/stream, see controller.EventStream). Each write path
+// publishes after it commits; the event is encoded once as a server-sent
+// events frame and offered to every subscription of that user. A subscription
+// holds at most queueSize frames: one that falls that far behind is evicted
+// and its connection closed, the client reconnects and catches up through
+// delta sync. Writing to the sockets is left to the subscription's Sink,
+// which does it without blocking, so no thread waits on a slow client and
+// idle connections cost no thread at all. A single background thread sends a
+// comment line every heartbeatSeconds to keep proxies from closing idle
+// streams and to notice clients that went away.
+public final class ChangeFeed {
+    private static final Log LOG = Log.get(ChangeFeed.class);
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final ConcurrentMap<Long, Set<Subscription>> byUser = new ConcurrentHashMap<>();
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final LongAdder published = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder evicted = new LongAdder();
+    private static final LongAdder refused = new LongAdder();
+    private static volatile int maxSubscribers = 10000;
+    private static volatile int maxPerUser = 16;
+    private static volatile int queueSize = 64;
+    private static ScheduledExecutorService heartbeat;
+
+    private ChangeFeed() {}
+
+    // writes queued frames to the client; wake() may be called from any thread
+    public interface Sink {
+        void wake();
+
+        // the subscription was evicted or the feed shut down: end the response
+        void close();
+    }
+
+    public static final class Subscription {
+        public final Long userId;
+        private final BlockingQueue<byte[]> queue;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile Sink sink;
+
+        Subscription(Long userId, int capacity) {
+            this.userId = userId;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        public void attach(Sink s) {
+            sink = s;
+            s.wake();
+        }
+
+        // the next frame to write, null when the client is up to date
+        public byte[] poll() {
+            byte[] frame = queue.poll();
+            if (frame != null) delivered.increment();
+            return frame;
+        }
+
+        // queues a frame of our own, e.g. the stream's opening lines
+        public boolean offer(byte[] frame) {
+            return deliver(this, frame);
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        // stops delivery; called when the connection ends for whatever reason
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            byUser.computeIfPresent(userId, (k, subs) -> {
+                subs.remove(this);
+                return subs.isEmpty() ? null : subs;
+            });
+            open.decrementAndGet();
+            queue.clear();
+        }
+    }
+
+    public static synchronized void start(int maxOpen, int maxOpenPerUser, int frames, int heartbeatSeconds) {
+        maxSubscribers = Math.max(0, maxOpen);
+        maxPerUser = Math.max(1, maxOpenPerUser);
+        queueSize = Math.max(1, frames);
+        if (heartbeat != null || heartbeatSeconds <= 0) return;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "todo-events-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(ChangeFeed::beat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    // closes every open stream; clients reconnect to whichever instance comes up next
+    public static synchronized void shutdown() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+        for (Set<Subscription> subs : byUser.values()) {
+            for (Subscription s : subs) {
+                evict(s);
+            }
+        }
+    }
+
+    // null when the server or this user already has as many streams as allowed
+    public static Subscription subscribe(Long userId) {
+        if (open.incrementAndGet() > maxSubscribers) {
+            open.decrementAndGet();
+            refused.increment();
+            return null;
+        }
+        final Subscription sub = new Subscription(userId, queueSize);
+        final boolean[] added = new boolean[1];
+        byUser.compute(userId, (k, subs) -> {
+            if (subs == null) subs = ConcurrentHashMap.newKeySet();
+            if (subs.size() < maxPerUser) added[0] = subs.add(sub);
+            return subs;
+        });
+        if (!added[0]) {
+            open.decrementAndGet();
+            refused.increment();
+            // drops the empty set a refused first subscription may have left
+            byUser.computeIfPresent(userId, (k, subs) -> subs.isEmpty() ? null : subs);
+            return null;
+        }
+        return sub;
+    }
+
+    public static boolean hasSubscribers(Long userId) {
+        return userId != null && byUser.containsKey(userId);
+    }
+
+    // event is the SSE event name, id the change version clients can resume from (may be null), data one line of JSON
+    public static void publish(Long userId, String event, Long id, byte[] data) {
+        Set<Subscription> subs = userId != null ? byUser.get(userId) : null;
+        if (subs == null) return;
+        published.increment();
+        byte[] frame = frame(event, id, data);
+        for (Subscription s : subs) {
+            deliver(s, frame);
+        }
+    }
+
+    static byte[] frame(String event, Long id, byte[] data) {
+        StringBuilder head = new StringBuilder(48);
+        if (id != null) head.append("id: ").append(id).append('\n');
+        head.append("event: ").append(event).append("\ndata: ");
+        byte[] h = head.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[h.length + data.length + 2];
+        System.arraycopy(h, 0, frame, 0, h.length);
+        System.arraycopy(data, 0, frame, h.length, data.length);
+        frame[frame.length - 2] = '\n';
+        frame[frame.length - 1] = '\n';
+        return frame;
+    }
+
+    private static boolean deliver(Subscription s, byte[] frame) {
+        if (s.isClosed()) return false;
+        if (!s.queue.offer(frame)) {
+            evicted.increment();
+            LOG.info("Evicting slow event stream of user {}", s.userId);
+            evict(s);
+            return false;
+        }
+        Sink sink = s.sink;
+        if (sink != null) sink.wake();
+        return true;
+    }
+
+    private static void evict(Subscription s) {
+        s.close();
+        Sink sink = s.sink;
+        if (sink != null) sink.close();
+    }
+
+    private static void beat() {
+        try {
+            for (Set<Subscription> subs : byUser.values()) {
+                for (Subscription s : subs) {
+                    deliver(s, HEARTBEAT);
+                }
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Heartbeat failed", ex);
+        }
+    }
+
+    public static Map<String, Number> metrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("events_streams_open", open.get());
+        m.put("events_users", byUser.size());
+        m.put("events_published", published.sum());
+        m.put("events_delivered", delivered.sum());
+        m.put("events_evicted", evicted.sum());
+        m.put("events_refused", refused.sum());
+        return m;
+    }
+}
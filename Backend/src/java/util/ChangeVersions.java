@@ -0,0 +1,45 @@
+package util;
+
+import entity.TodoVersion;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+
+// Hands out the per-user change versions used by delta sync.
+public final class ChangeVersions {
+    private ChangeVersions() {}
+
+    // next version for the user; the counter row stays locked until the caller's
+    // transaction ends, so a reader never sees version N before N-1 is committed
+    public static long next(Session session, Long userId) {
+        TodoVersion v = lock(session, userId);
+        v.setVersion(v.getVersion() + 1);
+        return v.getVersion();
+    }
+
+    // takes the user's counter row lock without bumping it, for work that must
+    // not interleave with that user's todo writes (see TodoStats)
+    public static TodoVersion lock(Session session, Long userId) {
+        TodoVersion v = (TodoVersion) session.get(TodoVersion.class, userId, LockOptions.UPGRADE);
+        if (v == null) {
+            // a user's first write: two of them racing on get-then-save would
+            // both insert and one would fail on the primary key. This insert
+            // is a no-op if the row exists and either way leaves it
+            // exclusively locked (INSERT IGNORE would only take a shared lock,
+            // and two writers upgrading it would deadlock), so the read below
+            // finds it
+            session.createSQLQuery("insert into todo_versions (user_id, version) values (:user, 0)"
+                    + " on duplicate key update version = version")
+                    .addSynchronizedEntityClass(TodoVersion.class)
+                    .setParameter("user", userId)
+                    .executeUpdate();
+            v = (TodoVersion) session.get(TodoVersion.class, userId, LockOptions.UPGRADE);
+        }
+        return v;
+    }
+
+    // latest committed version for the user, 0 if they never changed a todo
+    public static long current(Session session, Long userId) {
+        TodoVersion v = (TodoVersion) session.get(TodoVersion.class, userId);
+        return v != null ? v.getVersion() : 0;
+    }
+}
@@ -0,0 +1,118 @@
+package util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// In-memory change counters for the list endpoints. Write paths bump the key
+// of every collection they touch after committing; GETs turn the counter into
+// an ETag/Last-Modified pair and answer 304 without opening a Hibernate session
+// when the client already has the current version.
+// Counters are per JVM: a write made through another instance or straight in
+// MySQL is only noticed after the next local write to the same collection.
+// The time of the last write also decides where reads go: HibernateUtil keeps
+// a collection written within the last stickyMillis on the primary database,
+// so neither the writer nor an ETag that already counts the write gets a
+// replica's older rows.
+public final class CollectionVersions {
+    public static final String TODOS = "todos";
+    public static final String CATEGORIES = "categories";
+    public static final String USERS = "users";
+
+    // makes ETags from before a restart never match
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+    private static final long STARTED_AT = System.currentTimeMillis() / 1000 * 1000;
+
+    // writtenAt of a collection not written since startup
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private static final ConcurrentMap<String, Stamp> stamps = new ConcurrentHashMap<>();
+
+    private static final class Stamp {
+        final long counter;
+        final long lastModified;
+        // System.nanoTime() of the last write
+        final long writtenAt;
+
+        Stamp(long counter, long lastModified, long writtenAt) {
+            this.counter = counter;
+            this.lastModified = lastModified;
+            this.writtenAt = writtenAt;
+        }
+    }
+
+    private CollectionVersions() {}
+
+    public static String todosOf(Long userId) {
+        return TODOS + ":user:" + userId;
+    }
+
+    public static void bump(String key) {
+        // HTTP dates have second precision
+        final long now = System.currentTimeMillis() / 1000 * 1000;
+        final long at = System.nanoTime();
+        stamps.compute(key, (k, old) -> new Stamp(old == null ? 1 : old.counter + 1, now, at));
+    }
+
+    // for writes whose ETag was bumped earlier (buffered completion toggles
+    // reaching the database): only restarts the primary-read window
+    public static void written(String key) {
+        final long at = System.nanoTime();
+        stamps.compute(key, (k, old) -> old == null ? new Stamp(0, STARTED_AT, at) : new Stamp(old.counter, old.lastModified, at));
+    }
+
+    public static boolean writtenWithin(String key, long nanos) {
+        Stamp s = stamps.get(key);
+        return s != null && s.writtenAt != NEVER && System.nanoTime() - s.writtenAt < nanos;
+    }
+
+    // sets ETag and Last-Modified for the collection; true (and a 304 already sent) when the client copy is current
+    public static boolean notModified(HttpServletRequest req, HttpServletResponse resp, String key) {
+        return notModified(req, resp, key, null);
+    }
+
+    // variant tells apart representations of the same collection, e.g. the binary todo list
+    public static boolean notModified(HttpServletRequest req, HttpServletResponse resp, String key, String variant) {
+        Stamp s = stamps.computeIfAbsent(key, k -> new Stamp(0, STARTED_AT, NEVER));
+        // the key's hash keeps two users whose counters happen to be equal from
+        // sharing an ETag, so a cache that switches accounts never gets a 304
+        // for the other user's list
+        String etag = "W/\"" + EPOCH + "-" + Integer.toString(key.hashCode(), 36) + "-" + s.counter
+                + (variant != null ? "-" + variant : "") + "\"";
+        resp.setHeader("ETag", etag);
+        resp.setDateHeader("Last-Modified", s.lastModified);
+        // clients may keep the body but must revalidate before using it
+        resp.setHeader("Cache-Control", "no-cache");
+
+        boolean current;
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-None-Match wins over If-Modified-Since when both are sent
+            current = matches(ifNoneMatch, etag);
+        } else {
+            long since;
+            try {
+                since = req.getDateHeader("If-Modified-Since");
+            } catch (IllegalArgumentException ex) {
+                since = -1;
+            }
+            current = since != -1 && s.lastModified <= since;
+        }
+        if (current) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return current;
+    }
+
+    private static boolean matches(String header, String etag) {
+        String opaque = etag.substring(2);
+        for (String candidate : header.split(",")) {
+            String c = candidate.trim();
+            if (c.equals("*")) return true;
+            if (c.startsWith("W/")) c = c.substring(2);
+            if (c.equals(opaque)) return true;
+        }
+        return false;
+    }
+}
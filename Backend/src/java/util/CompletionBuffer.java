@@ -0,0 +1,321 @@
+package util;
+
+import entity.Todo;
+import entity.TodoView;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+// Write-behind for completion toggles (PUT /api/todos/{id} with is_completed).
+// When started, a toggle is checked and acknowledged at once and only recorded
+// here, keyed by todo id, so flipping the same todo again before the next
+// flush just replaces its entry. A background thread writes what is pending
+// every flushMillis in one transaction: owners' change versions and statistics
+// rows move as for any other write, and the rows themselves go out as a single
+// UPDATE ... WHERE id IN (...).
+// Until then readers patch the rows they read with overlay(). Reads whose SQL
+// depends on completion (completed= filters, counts, stats, delta sync) and
+// writes to the same todos call flush() first. A crash loses at most the
+// toggles acknowledged within the last flushMillis; once maxPending todos are
+// waiting the toggling request flushes itself.
+public final class CompletionBuffer {
+    private static final Log LOG = Log.get(CompletionBuffer.class);
+    // ids per UPDATE statement
+    private static final int MAX_FLUSH_ROWS = 1000;
+    // how long written values still patch reads that started before their flush
+    private static final long RETAIN_MILLIS = 10_000;
+
+    private static final ConcurrentMap<Long, Pending> pending = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Long, Flushed> flushed = new ConcurrentHashMap<>();
+    // one flush at a time, so an older value is never written after a newer one
+    private static final ReentrantLock flushLock = new ReentrantLock();
+    // bumped after every committed flush; see mark()
+    private static final AtomicLong epoch = new AtomicLong();
+    private static final LongAdder toggles = new LongAdder();
+    private static final LongAdder coalesced = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder rowsWritten = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static volatile ScheduledExecutorService flusher;
+    private static volatile int maxPending = 10000;
+    private static long lastPurge;
+
+    private CompletionBuffer() {}
+
+    private static final class Pending {
+        final Long userId;
+        final boolean completed;
+
+        Pending(Long userId, boolean completed) {
+            this.userId = userId;
+            this.completed = completed;
+        }
+    }
+
+    private static final class Flushed {
+        final boolean completed;
+        final long epoch;
+        final long at;
+
+        Flushed(boolean completed, long epoch, long at) {
+            this.completed = completed;
+            this.epoch = epoch;
+            this.at = at;
+        }
+    }
+
+    // flushMillis 0 leaves write-behind off: toggles are then written by the request as before
+    public static synchronized void start(int flushMillis, int maxPendingToggles) {
+        if (flusher != null || flushMillis <= 0) return;
+        maxPending = Math.max(1, maxPendingToggles);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "todo-write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(CompletionBuffer::tick, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // stops the background thread and writes whatever is still pending
+    public static synchronized void shutdown() {
+        ScheduledExecutorService current = flusher;
+        flusher = null;
+        if (current == null) return;
+        current.shutdown();
+        try {
+            current.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush(null);
+        } catch (RuntimeException ex) {
+            LOG.error("Lost {} completion toggles at shutdown", pending.size(), ex);
+        }
+    }
+
+    public static boolean enabled() {
+        return flusher != null;
+    }
+
+    // the caller has checked that the todo exists and belongs to the requester
+    public static void toggle(Long todoId, Long userId, boolean completed) {
+        toggles.increment();
+        if (pending.put(todoId, new Pending(userId, completed)) != null) coalesced.increment();
+        if (pending.size() >= maxPending) flush(null);
+    }
+
+    // taken before reading rows that overlay() will patch: a value flushed after
+    // the mark may have been committed after the read, so it still applies
+    public static long mark() {
+        return epoch.get();
+    }
+
+    public static TodoView overlay(TodoView t, long mark) {
+        if (pending.isEmpty() && flushed.isEmpty()) return t;
+        Boolean completed = valueFor(t.getId(), mark);
+        if (completed == null || completed == t.isCompleted()) return t;
+        return new TodoView(t.getId(), t.getTitle(), t.getDescription(), t.getPriority(), completed, t.getUserId());
+    }
+
+    public static void overlay(List<TodoView> todos, long mark) {
+        if (pending.isEmpty() && flushed.isEmpty()) return;
+        for (ListIterator<TodoView> it = todos.listIterator(); it.hasNext();) {
+            TodoView t = it.next();
+            TodoView patched = overlay(t, mark);
+            if (patched != t) it.set(patched);
+        }
+    }
+
+    private static Boolean valueFor(Long todoId, long mark) {
+        Pending p = pending.get(todoId);
+        if (p != null) return p.completed;
+        Flushed f = flushed.get(todoId);
+        return f != null && f.epoch > mark ? f.completed : null;
+    }
+
+    // writes the pending toggles of one user's todos, or of all todos for null
+    public static void flush(Long userId) {
+        if (pending.isEmpty()) return;
+        flushLock.lock();
+        try {
+            List<Map.Entry<Long, Pending>> batch = new ArrayList<>();
+            for (Map.Entry<Long, Pending> e : pending.entrySet()) {
+                if (userId == null || userId.equals(e.getValue().userId)) {
+                    batch.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+                }
+            }
+            write(batch);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // writes the pending toggles of these todos, if there are any
+    public static void flushTodos(Collection<Long> todoIds) {
+        if (pending.isEmpty()) return;
+        flushLock.lock();
+        try {
+            List<Map.Entry<Long, Pending>> batch = new ArrayList<>();
+            for (Long id : todoIds) {
+                Pending p = pending.get(id);
+                if (p != null) batch.add(new AbstractMap.SimpleImmutableEntry<>(id, p));
+            }
+            write(batch);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private static void tick() {
+        try {
+            flush(null);
+        } catch (RuntimeException ex) {
+            // the toggles stay pending and are retried on the next tick
+            LOG.error("Writing {} completion toggles failed", pending.size(), ex);
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastPurge >= RETAIN_MILLIS / 2) {
+            lastPurge = now;
+            flushed.values().removeIf(f -> now - f.at > RETAIN_MILLIS);
+        }
+    }
+
+    private static void write(List<Map.Entry<Long, Pending>> batch) {
+        for (int from = 0; from < batch.size(); from += MAX_FLUSH_ROWS) {
+            List<Map.Entry<Long, Pending>> chunk = batch.subList(from, Math.min(batch.size(), from + MAX_FLUSH_ROWS));
+            try {
+                writeChunk(chunk);
+            } catch (RuntimeException ex) {
+                failures.increment();
+                throw ex;
+            }
+            long e = epoch.incrementAndGet();
+            long now = System.currentTimeMillis();
+            // the ETags moved with the toggles; now the rows did, so replicas may be behind
+            CollectionVersions.written(CollectionVersions.TODOS);
+            for (Map.Entry<Long, Pending> entry : chunk) {
+                Long uid = entry.getValue().userId;
+                if (uid != null) CollectionVersions.written(CollectionVersions.todosOf(uid));
+                // published before the pending entry goes, so readers never see neither
+                flushed.put(entry.getKey(), new Flushed(entry.getValue().completed, e, now));
+                pending.remove(entry.getKey(), entry.getValue());
+            }
+            flushes.increment();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeChunk(List<Map.Entry<Long, Pending>> chunk) {
+        Map<Long, Pending> byId = new HashMap<>();
+        TreeSet<Long> owners = new TreeSet<>();
+        for (Map.Entry<Long, Pending> e : chunk) {
+            byId.put(e.getKey(), e.getValue());
+            if (e.getValue().userId != null) owners.add(e.getValue().userId);
+        }
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            // owners' locks first, in id order, so the rows read below cannot change underneath
+            for (Long uid : owners) {
+                ChangeVersions.lock(session, uid);
+            }
+            List<Object[]> rows = (List<Object[]>) session.getNamedQuery("Todo.completionByIds").setParameterList("ids", byId.keySet()).list();
+            List<Long> on = new ArrayList<>();
+            List<Long> off = new ArrayList<>();
+            Map<Long, Long> versions = new LinkedHashMap<>();
+            for (Object[] row : rows) {
+                Long id = (Long) row[0];
+                Pending p = byId.get(id);
+                boolean was = row[1] != null && (Boolean) row[1];
+                // flipped back before the flush: nothing to write
+                if (was == p.completed) continue;
+                (p.completed ? on : off).add(id);
+                Long uid = (Long) row[4];
+                if (uid != null) {
+                    if (!versions.containsKey(uid)) versions.put(uid, ChangeVersions.next(session, uid));
+                    String priority = (String) row[2];
+                    Long categoryId = (Long) row[3];
+                    TodoStats.changed(session, uid, new TodoStats.Snapshot(was, priority, categoryId),
+                            new TodoStats.Snapshot(p.completed, priority, categoryId));
+                }
+            }
+            if (!on.isEmpty() || !off.isEmpty()) {
+                update(session, on, off, versions).executeUpdate();
+                rowsWritten.add(on.size() + off.size());
+            }
+            tx.commit();
+        } catch (RuntimeException ex) {
+            if (tx != null && tx.isActive()) tx.rollback();
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+
+    // update todos set is_completed = case when id in (:on) then 1 else 0 end,
+    //   change_version = case user_id when :u0 then :v0 ... else change_version end
+    // where id in (:ids)
+    private static SQLQuery update(Session session, List<Long> on, List<Long> off, Map<Long, Long> versions) {
+        StringBuilder sql = new StringBuilder("update todos set is_completed = ");
+        if (off.isEmpty()) {
+            sql.append("1");
+        } else if (on.isEmpty()) {
+            sql.append("0");
+        } else {
+            sql.append("case when id in (:on) then 1 else 0 end");
+        }
+        if (!versions.isEmpty()) {
+            sql.append(", change_version = case user_id");
+            for (int i = 0; i < versions.size(); i++) {
+                sql.append(" when :u").append(i).append(" then :v").append(i);
+            }
+            sql.append(" else change_version end");
+        }
+        sql.append(" where id in (:ids)");
+
+        SQLQuery q = session.createSQLQuery(sql.toString());
+        // only todos rows change, other cached entities stay valid
+        q.addSynchronizedEntityClass(Todo.class);
+        List<Long> ids = new ArrayList<>(on);
+        ids.addAll(off);
+        q.setParameterList("ids", ids);
+        if (!on.isEmpty() && !off.isEmpty()) q.setParameterList("on", on);
+        int i = 0;
+        for (Map.Entry<Long, Long> v : versions.entrySet()) {
+            q.setParameter("u" + i, v.getKey());
+            q.setParameter("v" + i, v.getValue());
+            i++;
+        }
+        return q;
+    }
+
+    public static Map<String, Number> metrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("writebehind_pending", pending.size());
+        m.put("writebehind_toggles", toggles.sum());
+        m.put("writebehind_coalesced", coalesced.sum());
+        m.put("writebehind_flushes", flushes.sum());
+        m.put("writebehind_rows_written", rowsWritten.sum());
+        m.put("writebehind_failures", failures.sum());
+        return m;
+    }
+}
@@ -0,0 +1,53 @@
+package util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+// Reuses Deflater instances across responses. Each Deflater holds a native
+// zlib stream of a few hundred KB that is only freed by end() or finalization,
+// so creating one per response churns native memory. Two pools are kept:
+// raw deflate for gzip bodies (the gzip header and trailer are written by
+// hand) and zlib-wrapped for Content-Encoding: deflate.
+public final class DeflaterPool {
+    private static final int SIZE = Runtime.getRuntime().availableProcessors() * 4;
+
+    private static final BlockingQueue<Deflater> raw = new ArrayBlockingQueue<>(SIZE);
+    private static final BlockingQueue<Deflater> zlib = new ArrayBlockingQueue<>(SIZE);
+    private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+    private DeflaterPool() {}
+
+    // 1 (fastest) to 9 (smallest); applies to Deflaters created from now on
+    public static void setLevel(int compressionLevel) {
+        if (compressionLevel >= Deflater.BEST_SPEED && compressionLevel <= Deflater.BEST_COMPRESSION) {
+            level = compressionLevel;
+            clear(raw);
+            clear(zlib);
+        }
+    }
+
+    // nowrap: raw deflate data without the zlib header, as gzip needs
+    public static Deflater borrow(boolean nowrap) {
+        Deflater d = (nowrap ? raw : zlib).poll();
+        return d != null ? d : new Deflater(level, nowrap);
+    }
+
+    public static void release(Deflater d, boolean nowrap) {
+        d.reset();
+        if (!(nowrap ? raw : zlib).offer(d)) {
+            d.end();
+        }
+    }
+
+    public static int idle() {
+        return raw.size() + zlib.size();
+    }
+
+    private static void clear(BlockingQueue<Deflater> pool) {
+        Deflater d;
+        while ((d = pool.poll()) != null) {
+            d.end();
+        }
+    }
+}
@@ -1,28 +1,373 @@
 package util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.hibernate.HibernateException;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
 
+// Owns the SessionFactory. AppLifecycleListener starts building it on a
+// background thread when the application deploys (buildAsync), so no request
+// pays for it and a database that is not up yet is retried rather than
+// leaving the class unusable. Until the build succeeds, getSessionFactory()
+// waits for an attempt in progress and otherwise throws; /api/health/ready
+// reports isReady() so the load balancer holds traffic back meanwhile. Code
+// that never calls buildAsync (benchmarks, tools) builds it on first use.
+//
+// With read replicas configured (configureReplicas), the same thread then
+// builds one more factory per replica and keeps retrying those that fail.
+// Replica factories have no second-level or query cache, which would
+// otherwise keep rows from behind the primary, and never touch the schema.
+// Read-only handlers ask getReadSessionFactory() for the collection they
+// read: it answers the replica with the fewest connections in use, or the
+// primary while the collection has a write younger than stickyMillis (see
+// CollectionVersions), so a user always reads their own writes.
 public class HibernateUtil {
-    private static final SessionFactory sessionFactory = buildSessionFactory();
+    private static final Log LOG = Log.get(HibernateUtil.class);
+    private static final long RETRY_MILLIS = 5000;
 
-    private static SessionFactory buildSessionFactory() {
+    private static final Object lock = new Object();
+    private static volatile SessionFactory sessionFactory;
+    private static volatile Throwable lastFailure;
+    private static volatile Map<String, Long> startupMillis = new LinkedHashMap<>();
+    private static boolean building;
+    private static boolean closed;
+    private static Thread builder;
+
+    private static volatile List<String> replicaUrls = Collections.emptyList();
+    private static volatile long stickyNanos = TimeUnit.SECONDS.toNanos(5);
+    // the replicas built so far, replaced as a whole when one is added
+    private static volatile Replica[] replicas = new Replica[0];
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+    private static final LongAdder replicaReads = new LongAdder();
+    private static final LongAdder stickyReads = new LongAdder();
+
+    private static final class Replica {
+        final String url;
+        final SessionFactory sessionFactory;
+        // null when a -D override replaced the connection provider
+        final PooledConnectionProvider pool;
+
+        Replica(String url, SessionFactory sessionFactory) {
+            this.url = url;
+            this.sessionFactory = sessionFactory;
+            ConnectionProvider provider = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry()
+                    .getService(ConnectionProvider.class);
+            this.pool = provider instanceof PooledConnectionProvider ? (PooledConnectionProvider) provider : null;
+        }
+
+        int inUse() {
+            return pool != null ? pool.inUse() : 0;
+        }
+    }
+
+    // JDBC urls of read replicas, which use the primary's user and password
+    // unless the url says otherwise; call before buildAsync
+    public static void configureReplicas(List<String> urls, int stickyMillis) {
+        replicaUrls = Collections.unmodifiableList(new ArrayList<>(urls));
+        stickyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, stickyMillis));
+    }
+
+    // builds the factory off the caller's thread, retrying until it works; onReady runs on that thread afterwards
+    public static void buildAsync(final Runnable onReady) {
+        synchronized (lock) {
+            if (builder != null || sessionFactory != null) return;
+            closed = false;
+            builder = new Thread(() -> {
+                while (!attempt()) {
+                    LOG.warn("SessionFactory not available, retrying in {} ms", RETRY_MILLIS);
+                    if (!pause()) return;
+                }
+                if (onReady != null) onReady.run();
+                while (!buildReplicas()) {
+                    if (!pause()) return;
+                }
+            }, "todo-hibernate-init");
+            builder.setDaemon(true);
+            builder.start();
+        }
+    }
+
+    // false once shut down
+    private static boolean pause() {
+        synchronized (lock) {
+            if (closed) return false;
+            try {
+                lock.wait(RETRY_MILLIS);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+            return !closed;
+        }
+    }
+
+    public static SessionFactory getSessionFactory() {
+        SessionFactory sf = sessionFactory;
+        if (sf != null) return sf;
+        boolean background;
+        synchronized (lock) {
+            background = builder != null;
+            if (background) {
+                // a request that beats the background build waits for the attempt under way, not for retries
+                while (building) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        if (!background) attempt();
+        sf = sessionFactory;
+        if (sf == null) throw new HibernateException("SessionFactory is not available", lastFailure);
+        return sf;
+    }
+
+    // for a read of collection (a CollectionVersions key): the least busy
+    // replica, ties going round-robin, or the primary when there is none yet
+    // or the collection was written within stickyMillis
+    public static SessionFactory getReadSessionFactory(String collection) {
+        Replica[] rs = replicas;
+        if (rs.length == 0) return getSessionFactory();
+        if (CollectionVersions.writtenWithin(collection, stickyNanos)) {
+            stickyReads.increment();
+            return getSessionFactory();
+        }
+        int n = rs.length;
+        int start = Math.floorMod(nextReplica.getAndIncrement(), n);
+        Replica best = rs[start];
+        int bestInUse = best.inUse();
+        for (int i = 1; i < n && bestInUse > 0; i++) {
+            Replica r = rs[(start + i) % n];
+            int inUse = r.inUse();
+            if (inUse < bestInUse) {
+                best = r;
+                bestInUse = inUse;
+            }
+        }
+        replicaReads.increment();
+        return best.sessionFactory;
+    }
+
+    public static boolean isReady() {
+        return sessionFactory != null;
+    }
+
+    // the last build error while not ready, else null
+    public static Throwable failure() {
+        return sessionFactory == null ? lastFailure : null;
+    }
+
+    // configure / build / warm-up durations of the successful build
+    public static Map<String, Long> startupMillis() {
+        return startupMillis;
+    }
+
+    // one build at a time; true once the factory exists
+    private static boolean attempt() {
+        synchronized (lock) {
+            while (building) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return sessionFactory != null;
+                }
+            }
+            if (sessionFactory != null) return true;
+            if (closed) return false;
+            building = true;
+        }
+        SessionFactory sf = null;
+        Throwable error = null;
+        Map<String, Long> phases = new LinkedHashMap<>();
         try {
-            // Create the SessionFactory from hibernate.cfg.xml
-            return new Configuration().configure().buildSessionFactory();
+            sf = build(phases);
         } catch (Throwable ex) {
-            // Make sure you log the exception, as it might be swallowed
-            System.err.println("Initial SessionFactory creation failed." + ex);
-            throw new ExceptionInInitializerError(ex);
+            error = ex;
+            LOG.error("SessionFactory creation failed", ex);
+        }
+        synchronized (lock) {
+            building = false;
+            if (sf != null && closed) {
+                // shut down while building
+                sf.close();
+                sf = null;
+            }
+            if (sf != null) {
+                startupMillis = phases;
+                sessionFactory = sf;
+                lastFailure = null;
+            } else if (error != null) {
+                lastFailure = error;
+            }
+            lock.notifyAll();
         }
+        return sf != null;
     }
 
-    public static SessionFactory getSessionFactory() {
-        return sessionFactory;
+    // builds the replicas that are not up yet; true once all of them are
+    private static boolean buildReplicas() {
+        List<String> missing = new ArrayList<>(replicaUrls);
+        for (Replica r : replicas) {
+            missing.remove(r.url);
+        }
+        for (String url : missing) {
+            SessionFactory sf;
+            try {
+                long t0 = System.nanoTime();
+                sf = replicaConfiguration(url).buildSessionFactory();
+                try {
+                    warmUp(sf);
+                } catch (RuntimeException ex) {
+                    sf.close();
+                    throw ex;
+                }
+                LOG.info("Read replica {} ready in {} ms", url, (System.nanoTime() - t0) / 1_000_000);
+            } catch (RuntimeException ex) {
+                LOG.warn("Read replica {} not available, retrying in {} ms", url, RETRY_MILLIS, ex);
+                continue;
+            }
+            synchronized (lock) {
+                if (closed) {
+                    sf.close();
+                    return true;
+                }
+                Replica[] next = Arrays.copyOf(replicas, replicas.length + 1);
+                next[next.length - 1] = new Replica(url, sf);
+                replicas = next;
+            }
+        }
+        return replicas.length == replicaUrls.size();
+    }
+
+    // hibernate.cfg.xml with the -D hibernate.* overrides
+    private static Configuration configuration() {
+        Configuration configuration = new Configuration().configure();
+        // -Dhibernate.c3p0.max_size=50 etc. override the file without a rebuild
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("hibernate.")) {
+                configuration.setProperty(key, System.getProperty(key));
+            }
+        }
+        configuration.setInterceptor(new SqlLogInterceptor());
+        return configuration;
+    }
+
+    private static Configuration replicaConfiguration(String url) {
+        Configuration configuration = configuration();
+        configuration.setProperty("hibernate.connection.url", url);
+        configuration.getProperties().remove("hibernate.hbm2ddl.auto");
+        configuration.setProperty("hibernate.cache.use_second_level_cache", "false");
+        configuration.setProperty("hibernate.cache.use_query_cache", "false");
+        configuration.setProperty("hibernate.cache.region.factory_class", "org.hibernate.cache.internal.NoCachingRegionFactory");
+        configuration.setProperty(PooledConnectionProvider.REPLICA, "true");
+        return configuration;
+    }
+
+    private static SessionFactory build(Map<String, Long> phases) {
+        long t0 = System.nanoTime();
+        // Create the SessionFactory from hibernate.cfg.xml
+        Configuration configuration = configuration();
+        long t1 = System.nanoTime();
+        // starts the pool, runs hbm2ddl if configured and compiles the named queries
+        SessionFactory sf = configuration.buildSessionFactory();
+        long t2 = System.nanoTime();
+        try {
+            warmUp(sf);
+        } catch (RuntimeException ex) {
+            sf.close();
+            throw ex;
+        }
+        long t3 = System.nanoTime();
+        phases.put("configure", (t1 - t0) / 1_000_000);
+        phases.put("build", (t2 - t1) / 1_000_000);
+        phases.put("warmup", (t3 - t2) / 1_000_000);
+        LOG.info("SessionFactory ready in {} ms (configure, build, warm-up: {})", (t3 - t0) / 1_000_000, phases.values());
+        return sf;
+    }
+
+    // one round trip through a pooled connection, so the first request finds
+    // the database reachable and the pool's minimum connections open
+    private static void warmUp(SessionFactory sf) {
+        StatelessSession session = sf.openStatelessSession();
+        try {
+            session.getNamedQuery("User.all").setMaxResults(1).list();
+        } finally {
+            session.close();
+        }
+    }
+
+    // connection pool gauges and acquire latency, see PooledConnectionProvider
+    public static Map<String, Number> getPoolMetrics() {
+        return PooledConnectionProvider.metrics();
+    }
+
+    // hit/miss counts and ratios for the second-level regions and the query cache
+    public static Map<String, Number> getCacheMetrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        Statistics stats = getSessionFactory().getStatistics();
+        for (String region : stats.getSecondLevelCacheRegionNames()) {
+            SecondLevelCacheStatistics rs = stats.getSecondLevelCacheStatistics(region);
+            if (rs == null) continue;
+            putRatio(m, "cache_" + region, rs.getHitCount(), rs.getMissCount());
+            m.put("cache_" + region + "_entries", rs.getElementCountInMemory());
+        }
+        putRatio(m, "query_cache", stats.getQueryCacheHitCount(), stats.getQueryCacheMissCount());
+        return m;
     }
 
+    // replicas up and reads sent to them or kept on the primary
+    public static Map<String, Number> getReplicaMetrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        Replica[] rs = replicas;
+        m.put("db_replicas_configured", replicaUrls.size());
+        m.put("db_replicas_ready", rs.length);
+        m.put("db_reads_replica", replicaReads.sum());
+        m.put("db_reads_primary_sticky", stickyReads.sum());
+        for (int i = 0; i < rs.length; i++) {
+            m.put("db_replica_" + i + "_in_use", rs[i].inUse());
+        }
+        return m;
+    }
+
+    private static void putRatio(Map<String, Number> m, String prefix, long hits, long misses) {
+        m.put(prefix + "_hits", hits);
+        m.put(prefix + "_misses", misses);
+        m.put(prefix + "_hit_ratio", hits + misses == 0 ? 0.0 : hits / (double) (hits + misses));
+    }
+
+    // stops a build still retrying and closes caches and the connection pool
     public static void shutdown() {
-        // Close caches and connection pools
-        getSessionFactory().close();
+        SessionFactory sf;
+        Replica[] rs;
+        synchronized (lock) {
+            closed = true;
+            sf = sessionFactory;
+            sessionFactory = null;
+            rs = replicas;
+            replicas = new Replica[0];
+            builder = null;
+            lock.notifyAll();
+        }
+        // a build under way closes its own factory when it sees closed
+        for (Replica r : rs) {
+            r.sessionFactory.close();
+        }
+        if (sf != null) sf.close();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,304 @@
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// Single-pass reader for the small flat JSON objects the servlets accept.
+// The body is decoded once from the request InputStream and only the
+// top-level keys a handler asks for are kept; every other value is skipped
+// without being copied. Strings are unescaped, numbers and booleans are
+// returned as their literal text, null and nested values are left out.
+public final class JsonBody {
+    // a todo description is at most 2000 chars, this leaves plenty of headroom
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private final Reader in;
+    private final char[] buf = new char[1024];
+    private final StringBuilder sb = new StringBuilder();
+    private int pos;
+    private int len;
+
+    private JsonBody(Reader in) {
+        this.in = in;
+    }
+
+    public static class InvalidBodyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        InvalidBodyException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    // parses the request body; an empty or non-object body yields an empty map
+    public static Map<String, String> read(HttpServletRequest req, int maxBytes, String... keys) throws IOException {
+        JsonBody body = open(req, maxBytes);
+        if (body.skipWhitespace() != '{') return new HashMap<>();
+        return body.object(keys);
+    }
+
+    // parses a body that is an array of flat objects, e.g. the todo batch endpoint
+    public static List<Map<String, String>> readArray(HttpServletRequest req, int maxBytes, String... keys) throws IOException {
+        JsonBody body = open(req, maxBytes);
+        List<Map<String, String>> items = new ArrayList<>();
+        if (body.skipWhitespace() != '[') throw malformed();
+        body.pos++;
+        int c = body.skipWhitespace();
+        if (c == ']') return items;
+        while (true) {
+            if (c != '{') throw malformed();
+            items.add(body.object(keys));
+            c = body.skipWhitespace();
+            body.pos++;
+            if (c == ']') return items;
+            if (c != ',') throw malformed();
+            c = body.skipWhitespace();
+        }
+    }
+
+    // same as read() with the default limit, but answers 400/413 itself and returns null on a bad body
+    public static Map<String, String> readOrReject(HttpServletRequest req, HttpServletResponse resp, String... keys) throws IOException {
+        try {
+            return read(req, DEFAULT_MAX_BYTES, keys);
+        } catch (InvalidBodyException ex) {
+            reject(resp, ex);
+            return null;
+        }
+    }
+
+    public static void reject(HttpServletResponse resp, InvalidBodyException ex) throws IOException {
+        resp.setStatus(ex.getStatus());
+        resp.setContentType("application/json;charset=UTF-8");
+        try (PrintWriter out = resp.getWriter()) {
+            out.print(ex.getStatus() == HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE
+                    ? "{\"error\":\"request body too large\"}" : "{\"error\":\"malformed JSON body\"}");
+        }
+    }
+
+    private static JsonBody open(HttpServletRequest req, int maxBytes) throws IOException {
+        if (req.getContentLength() > maxBytes) {
+            throw new InvalidBodyException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "request body too large");
+        }
+        String enc = req.getCharacterEncoding();
+        Charset cs = enc != null && Charset.isSupported(enc) ? Charset.forName(enc) : StandardCharsets.UTF_8;
+        return new JsonBody(new InputStreamReader(new LimitedInputStream(req.getInputStream(), maxBytes), cs));
+    }
+
+    // reads one object; the next character must be its opening brace
+    private Map<String, String> object(String[] keys) throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        pos++;
+        int c = skipWhitespace();
+        if (c == '}') return fields;
+        while (true) {
+            if (c != '"') throw malformed();
+            pos++;
+            String key = string();
+            if (skipWhitespace() != ':') throw malformed();
+            pos++;
+            if (isWanted(key, keys)) {
+                String value = scalar();
+                if (value != null) {
+                    fields.put(key, value);
+                }
+            } else {
+                skipValue();
+            }
+            c = skipWhitespace();
+            pos++;
+            if (c == '}') return fields;
+            if (c != ',') throw malformed();
+            c = skipWhitespace();
+        }
+    }
+
+    private static boolean isWanted(String key, String[] keys) {
+        for (String k : keys) {
+            if (k.equals(key)) return true;
+        }
+        return false;
+    }
+
+    // value of a wanted key: string contents or literal text, null for JSON null and nested values
+    private String scalar() throws IOException {
+        int c = skipWhitespace();
+        if (c == '"') {
+            pos++;
+            return string();
+        }
+        if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+        String literal = literal();
+        return "null".equals(literal) ? null : literal;
+    }
+
+    private void skipValue() throws IOException {
+        int c = skipWhitespace();
+        if (c == '"') {
+            pos++;
+            skipString();
+        } else if (c == '{' || c == '[') {
+            // nested values are never kept, so only bracket depth matters
+            int depth = 0;
+            do {
+                c = next();
+                if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            literal();
+        }
+    }
+
+    private String literal() throws IOException {
+        sb.setLength(0);
+        while (true) {
+            int c = peek();
+            if (c == -1 || c == ',' || c == '}' || c == ']' || c <= ' ') break;
+            sb.append((char) c);
+            pos++;
+        }
+        if (sb.length() == 0) throw malformed();
+        return sb.toString();
+    }
+
+    private String string() throws IOException {
+        sb.setLength(0);
+        while (true) {
+            // plain characters up to the next quote, backslash or end of the buffer are appended in one go
+            if (peek() == -1) throw malformed();
+            int start = pos;
+            while (pos < len) {
+                char ch = buf[pos];
+                if (ch == '"' || ch == '\\' || ch < ' ') break;
+                pos++;
+            }
+            sb.append(buf, start, pos - start);
+            if (pos == len) continue;
+            int c = next();
+            if (c == '"') return sb.toString();
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case '"': case '\\': case '/': sb.append((char) c); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u': sb.append(unicode()); break;
+                    default: throw malformed();
+                }
+            } else if (c < ' ') {
+                throw malformed();
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = next();
+            if (c == '"') return;
+            if (c == '\\') next();
+        }
+    }
+
+    private char unicode() throws IOException {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            int d = Character.digit(next(), 16);
+            if (d < 0) throw malformed();
+            v = (v << 4) | d;
+        }
+        return (char) v;
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            pos++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == len) {
+            len = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+        }
+        return buf[pos];
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        if (c == -1) throw malformed();
+        pos++;
+        return c;
+    }
+
+    private static InvalidBodyException malformed() {
+        return new InvalidBodyException(HttpServletResponse.SC_BAD_REQUEST, "malformed JSON body");
+    }
+
+    // stops reading a body that turns out larger than its Content-Length promised (or had none)
+    private static final class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) consumed(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            int r = in.read(b, off, n);
+            if (r > 0) consumed(r);
+            return r;
+        }
+
+        private void consumed(int n) throws InvalidBodyException {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new InvalidBodyException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "request body too large");
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Streaming JSON encoder shared by the servlets. Writes UTF-8 bytes straight
+// into the response OutputStream through a buffer borrowed from BufferPool,
+// escaping each string in a single pass, so no String is built for the
+// response body. Get a writer per document with JsonWriter.of(out) and call
+// close() once it is complete, which returns the buffer; flush() pushes what
+// is buffered so far, e.g. between chunks of a long list.
+public final class JsonWriter {
+    private static final int BUFFER_SIZE = BufferPool.BUFFER_SIZE;
+    private static final int MAX_DEPTH = 32;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+
+    private final OutputStream out;
+    private byte[] buf = BufferPool.borrow();
+    private final byte[] digits = new byte[20];
+    // per nesting level: has the current array/object already got an element
+    private final boolean[] hasElement = new boolean[MAX_DEPTH];
+    private int pos;
+    private int depth;
+    private boolean afterName;
+
+    private JsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public static JsonWriter of(OutputStream out) {
+        return new JsonWriter(out);
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        put((byte) ':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String s) throws IOException {
+        separate();
+        if (s == null) {
+            put(NULL);
+        } else {
+            string(s);
+        }
+        return this;
+    }
+
+    public JsonWriter value(long v) throws IOException {
+        separate();
+        number(v);
+        return this;
+    }
+
+    public JsonWriter value(Long v) throws IOException {
+        if (v == null) return nullValue();
+        return value(v.longValue());
+    }
+
+    // NaN and infinities are not JSON and come out as null
+    public JsonWriter value(double v) throws IOException {
+        separate();
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            put(NULL);
+        } else if (v == (long) v && Math.abs(v) < 1e15) {
+            number((long) v);
+        } else {
+            put(Double.toString(v).getBytes());
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean b) throws IOException {
+        separate();
+        put(b ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        separate();
+        put(NULL);
+        return this;
+    }
+
+    // pushes buffered bytes to the stream and flushes it, e.g. between chunks of a long list
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    // flushes and returns the buffer to the pool; the writer cannot be used afterwards
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            BufferPool.release(buf);
+            buf = null;
+        }
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        separate();
+        if (depth == MAX_DEPTH) throw new IllegalStateException("JSON nested deeper than " + MAX_DEPTH);
+        put((byte) c);
+        hasElement[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        depth--;
+        put((byte) c);
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (hasElement[depth - 1]) put((byte) ',');
+            hasElement[depth - 1] = true;
+        }
+    }
+
+    private void string(String s) throws IOException {
+        put((byte) '"');
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            // a run of printable ASCII needing no escape is copied in bulk
+            int end = i;
+            while (end < n) {
+                char c = s.charAt(end);
+                if (c < 0x20 || c >= 0x80 || c == '"' || c == '\\') break;
+                end++;
+            }
+            while (i < end) {
+                if (pos == BUFFER_SIZE) drain();
+                int len = Math.min(end - i, BUFFER_SIZE - pos);
+                // the low byte of an ASCII char is its UTF-8 encoding
+                for (int k = 0; k < len; k++) {
+                    buf[pos + k] = (byte) s.charAt(i + k);
+                }
+                pos += len;
+                i += len;
+            }
+            if (i < n) i = special(s, i, n);
+        }
+        put((byte) '"');
+    }
+
+    // encodes the char at i, which the ASCII run stopped at; returns the index after it
+    private int special(String s, int i, int n) throws IOException {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            escape(c);
+        } else if (c < 0x800) {
+            if (pos + 2 > BUFFER_SIZE) drain();
+            buf[pos++] = (byte) (0xc0 | (c >> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            if (pos + 4 > BUFFER_SIZE) drain();
+            buf[pos++] = (byte) (0xf0 | (cp >> 18));
+            buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (Character.isSurrogate(c) || c == '\u2028' || c == '\u2029') {
+            // lone surrogates cannot be encoded as UTF-8; line separators break JavaScript eval
+            escape(c);
+        } else {
+            if (pos + 3 > BUFFER_SIZE) drain();
+            buf[pos++] = (byte) (0xe0 | (c >> 12));
+            buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[pos++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i + 1;
+    }
+
+    private void escape(char c) throws IOException {
+        if (pos + 6 > BUFFER_SIZE) drain();
+        buf[pos++] = '\\';
+        switch (c) {
+            case '"': buf[pos++] = '"'; return;
+            case '\\': buf[pos++] = '\\'; return;
+            case '\n': buf[pos++] = 'n'; return;
+            case '\r': buf[pos++] = 'r'; return;
+            case '\t': buf[pos++] = 't'; return;
+            case '\b': buf[pos++] = 'b'; return;
+            case '\f': buf[pos++] = 'f'; return;
+            default:
+                buf[pos++] = 'u';
+                buf[pos++] = HEX[(c >> 12) & 0xf];
+                buf[pos++] = HEX[(c >> 8) & 0xf];
+                buf[pos++] = HEX[(c >> 4) & 0xf];
+                buf[pos++] = HEX[c & 0xf];
+        }
+    }
+
+    private void number(long v) throws IOException {
+        if (v == Long.MIN_VALUE) {
+            put(Long.toString(v).getBytes());
+            return;
+        }
+        if (v < 0) {
+            put((byte) '-');
+            v = -v;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        if (pos + digits.length - i > BUFFER_SIZE) drain();
+        System.arraycopy(digits, i, buf, pos, digits.length - i);
+        pos += digits.length - i;
+    }
+
+    private void put(byte b) throws IOException {
+        if (pos == BUFFER_SIZE) drain();
+        buf[pos++] = b;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (pos + bytes.length > BUFFER_SIZE) drain();
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void drain() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+}
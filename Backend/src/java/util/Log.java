@@ -0,0 +1,284 @@
+package util;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous logger for the application code. A log call checks the level,
+// claims a slot in a fixed ring of preallocated entries and stores the
+// message pattern and its arguments there; a single background thread formats
+// the entries as logfmt lines and writes them to stdout in batches. When the
+// ring is full the event is dropped and counted rather than making the
+// request thread wait. Arguments are formatted later on the background
+// thread, so pass immutable values (strings, numbers), not objects that the
+// caller keeps changing.
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 50_000_000L;
+
+    private static final Entry[] ring = new Entry[CAPACITY];
+    // next sequence to claim, and the next one the writer thread will read
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder written = new LongAdder();
+    private static final ThreadLocal<String> requestId = new ThreadLocal<>();
+
+    private static volatile Level threshold = Level.INFO;
+    private static volatile double sqlSampleRate;
+    private static volatile boolean sleeping;
+    private static volatile boolean stopped;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+            ring[i].sequence = i - CAPACITY;
+        }
+        writer = new Thread(Log::drain, "todo-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static final class Entry {
+        // sequence of the event stored here; the writer reads the slot once this matches
+        volatile long sequence;
+        long time;
+        Level level;
+        String logger;
+        String thread;
+        String request;
+        String message;
+        int argc;
+        Object a0;
+        Object a1;
+        Object a2;
+    }
+
+    private final String name;
+
+    private Log(String name) {
+        this.name = name;
+    }
+
+    public static Log get(Class<?> type) {
+        return new Log(type.getSimpleName());
+    }
+
+    public static Log get(String name) {
+        return new Log(name);
+    }
+
+    // level as DEBUG/INFO/WARN/ERROR, case-insensitive; SQL sample rate between 0 (off) and 1 (every statement)
+    public static void configure(String level, double sqlSample) {
+        if (level != null && !level.trim().isEmpty()) {
+            try {
+                threshold = Level.valueOf(level.trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                get(Log.class).warn("Ignoring unknown log level {}", level);
+            }
+        }
+        sqlSampleRate = Math.max(0, Math.min(1, sqlSample));
+    }
+
+    // the correlation id that log calls on this thread attach; returns the previous one to restore
+    public static String bind(String id) {
+        String previous = requestId.get();
+        if (id == null) {
+            requestId.remove();
+        } else {
+            requestId.set(id);
+        }
+        return previous;
+    }
+
+    public static double sqlSampleRate() {
+        return sqlSampleRate;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public void debug(String msg) { log(Level.DEBUG, msg, 0, null, null, null); }
+    public void debug(String msg, Object a) { log(Level.DEBUG, msg, 1, a, null, null); }
+    public void debug(String msg, Object a, Object b) { log(Level.DEBUG, msg, 2, a, b, null); }
+    public void debug(String msg, Object a, Object b, Object c) { log(Level.DEBUG, msg, 3, a, b, c); }
+
+    public void info(String msg) { log(Level.INFO, msg, 0, null, null, null); }
+    public void info(String msg, Object a) { log(Level.INFO, msg, 1, a, null, null); }
+    public void info(String msg, Object a, Object b) { log(Level.INFO, msg, 2, a, b, null); }
+    public void info(String msg, Object a, Object b, Object c) { log(Level.INFO, msg, 3, a, b, c); }
+
+    // a Throwable passed as the last argument without a matching {} is logged with its stack trace
+    public void warn(String msg) { log(Level.WARN, msg, 0, null, null, null); }
+    public void warn(String msg, Object a) { log(Level.WARN, msg, 1, a, null, null); }
+    public void warn(String msg, Object a, Object b) { log(Level.WARN, msg, 2, a, b, null); }
+    public void warn(String msg, Object a, Object b, Object c) { log(Level.WARN, msg, 3, a, b, c); }
+
+    public void error(String msg) { log(Level.ERROR, msg, 0, null, null, null); }
+    public void error(String msg, Object a) { log(Level.ERROR, msg, 1, a, null, null); }
+    public void error(String msg, Object a, Object b) { log(Level.ERROR, msg, 2, a, b, null); }
+    public void error(String msg, Object a, Object b, Object c) { log(Level.ERROR, msg, 3, a, b, c); }
+
+    private void log(Level level, String msg, int argc, Object a0, Object a1, Object a2) {
+        if (level.compareTo(threshold) < 0) return;
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        Entry e = ring[(int) (seq & MASK)];
+        e.time = System.currentTimeMillis();
+        e.level = level;
+        e.logger = name;
+        e.thread = Thread.currentThread().getName();
+        e.request = requestId.get();
+        e.message = msg;
+        e.argc = argc;
+        e.a0 = a0;
+        e.a1 = a1;
+        e.a2 = a2;
+        e.sequence = seq;
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    public static Map<String, Number> metrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("log_queued", Math.max(0, tail.get() - head));
+        m.put("log_capacity", CAPACITY);
+        m.put("log_written", written.sum());
+        m.put("log_dropped", dropped.sum());
+        return m;
+    }
+
+    // writes out what is already queued and stops the writer thread
+    public static void shutdown() {
+        stopped = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void drain() {
+        PrintStream out = System.out;
+        StringBuilder sb = new StringBuilder(16384);
+        Object[] args = new Object[3];
+        while (true) {
+            long seq = head;
+            Entry e = ring[(int) (seq & MASK)];
+            if (e.sequence == seq) {
+                args[0] = e.a0;
+                args[1] = e.a1;
+                args[2] = e.a2;
+                format(sb, e, args);
+                e.level = null;
+                e.logger = e.thread = e.request = e.message = null;
+                e.a0 = e.a1 = e.a2 = null;
+                args[0] = args[1] = args[2] = null;
+                // hands the slot back to the producers
+                head = seq + 1;
+                written.increment();
+                if (sb.length() < 16384) continue;
+            }
+            if (sb.length() > 0) {
+                out.print(sb);
+                out.flush();
+                sb.setLength(0);
+                continue;
+            }
+            if (stopped && tail.get() == head) return;
+            sleeping = true;
+            if (ring[(int) (head & MASK)].sequence != head) {
+                // the timeout covers a producer that published just before sleeping was set
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    // ts=... level=INFO logger=TodoServlet thread=todo-request-3 req=k2f9-1a msg="..." [error="..." stack="..."]
+    private static void format(StringBuilder sb, Entry e, Object[] args) {
+        sb.append("ts=").append(Instant.ofEpochMilli(e.time))
+                .append(" level=").append(e.level)
+                .append(" logger=").append(e.logger)
+                .append(" thread=");
+        quote(sb, e.thread);
+        if (e.request != null) sb.append(" req=").append(e.request);
+        sb.append(" msg=\"");
+        int used = 0;
+        String msg = e.message;
+        int from = 0;
+        for (int i = msg.indexOf("{}"); i >= 0 && used < e.argc; i = msg.indexOf("{}", from)) {
+            escape(sb, msg, from, i);
+            escape(sb, String.valueOf(args[used++]));
+            from = i + 2;
+        }
+        escape(sb, msg, from, msg.length());
+        sb.append('"');
+        Throwable thrown = used < e.argc && args[e.argc - 1] instanceof Throwable ? (Throwable) args[e.argc - 1] : null;
+        if (thrown != null) {
+            sb.append(" error=");
+            quote(sb, thrown.toString());
+            sb.append(" stack=\"");
+            for (Throwable t = thrown; t != null; t = t.getCause()) {
+                if (t != thrown) {
+                    sb.append("caused by ");
+                    escape(sb, t.toString());
+                    sb.append("\\n");
+                }
+                for (StackTraceElement frame : t.getStackTrace()) {
+                    sb.append("at ");
+                    escape(sb, frame.toString());
+                    sb.append("\\n");
+                }
+                if (t.getCause() == t) break;
+            }
+            sb.append('"');
+        }
+        sb.append('\n');
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        escape(sb, s);
+        sb.append('"');
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        escape(sb, s, 0, s.length());
+    }
+
+    private static void escape(StringBuilder sb, String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else if (c < ' ') {
+                sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
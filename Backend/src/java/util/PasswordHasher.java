@@ -0,0 +1,158 @@
+package util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Salted PBKDF2-HMAC-SHA256 password hashes, stored as
+// pbkdf2_sha256$<iterations>$<salt>$<hash> (base64). The work runs on a pool
+// with one thread per core and a bounded queue, so a burst of logins queues up
+// there instead of occupying every request thread with CPU-bound hashing.
+// Rows created before hashing hold the plain password; verify() still accepts
+// them and needsRehash() tells the caller to upgrade the stored value.
+public final class PasswordHasher {
+    private static final String PREFIX = "pbkdf2_sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int DEFAULT_ITERATIONS = 120000;
+    private static final long WAIT_SECONDS = 10;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static volatile int iterations = DEFAULT_ITERATIONS;
+    private static final ThreadPoolExecutor pool = newPool();
+
+    // hashed once so unknown emails cost as much to reject as wrong passwords
+    private static volatile String dummyHash;
+
+    public static class BusyException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        BusyException(String message) {
+            super(message);
+        }
+    }
+
+    private PasswordHasher() {}
+
+    public static void setIterations(int n) {
+        if (n < 1000) throw new IllegalArgumentException("too few PBKDF2 iterations: " + n);
+        iterations = n;
+        dummyHash = null;
+    }
+
+    public static String hash(final String password) throws BusyException {
+        return run(() -> encode(password, iterations));
+    }
+
+    public static boolean verify(final String password, final String stored) throws BusyException {
+        return run(() -> matches(password, stored));
+    }
+
+    // same cost as a real verify, for callers that found no user
+    public static void verifyNothing(final String password) throws BusyException {
+        run(() -> {
+            String dummy = dummyHash;
+            if (dummy == null) dummyHash = dummy = encode("", iterations);
+            return matches(password, dummy);
+        });
+    }
+
+    // true for plain-text and for hashes made with fewer iterations than configured now
+    public static boolean needsRehash(String stored) {
+        if (stored == null || !stored.startsWith(PREFIX)) return true;
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+        } catch (NumberFormatException ex) {
+            return true;
+        }
+    }
+
+    public static void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private interface Work<T> {
+        T call() throws GeneralSecurityException;
+    }
+
+    private static <T> T run(final Work<T> work) throws BusyException {
+        Future<T> f;
+        try {
+            f = pool.submit(work::call);
+        } catch (RejectedExecutionException ex) {
+            throw new BusyException("password hashing queue full");
+        }
+        try {
+            return f.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            f.cancel(true);
+            throw new BusyException("password hashing timed out");
+        } catch (InterruptedException ex) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new BusyException("interrupted");
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("password hashing failed", ex.getCause());
+        }
+    }
+
+    private static String encode(String password, int rounds) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + rounds + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(pbkdf2(password, salt, rounds));
+    }
+
+    private static boolean matches(String password, String stored) throws GeneralSecurityException {
+        if (stored == null) return false;
+        if (!stored.startsWith(PREFIX)) {
+            // legacy plain-text row
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) return false;
+        int rounds;
+        byte[] salt;
+        byte[] expected;
+        try {
+            rounds = Integer.parseInt(parts[1]);
+            salt = Base64.getDecoder().decode(parts[2]);
+            expected = Base64.getDecoder().decode(parts[3]);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        return MessageDigest.isEqual(expected, pbkdf2(password, salt, rounds));
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int rounds) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, rounds, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static ThreadPoolExecutor newPool() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        final AtomicInteger seq = new AtomicInteger();
+        return new ThreadPoolExecutor(cores, cores, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(cores * 64), r -> {
+            Thread t = new Thread(r, "password-hash-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,102 @@
+package util;
+
+import com.mchange.v2.c3p0.PooledDataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sql.DataSource;
+import org.hibernate.c3p0.internal.C3P0ConnectionProvider;
+
+// c3p0 connection provider that also records how long requests wait for a
+// connection, so pool exhaustion shows up as latency instead of a silent queue.
+// Read replicas (see HibernateUtil) get one each too; the pool gauges are the
+// primary's, the acquire timings cover all of them.
+public class PooledConnectionProvider extends C3P0ConnectionProvider {
+    private static final long serialVersionUID = 1L;
+    // set on a replica's configuration
+    public static final String REPLICA = "todo.replica";
+
+    private static volatile PooledConnectionProvider current;
+
+    private static final LongAdder acquireCount = new LongAdder();
+    private static final LongAdder acquireNanos = new LongAdder();
+    private static final AtomicLong acquireMaxNanos = new AtomicLong();
+    private static final LongAdder acquireFailures = new LongAdder();
+
+    // connections handed out and not yet returned; cheaper to read than c3p0's own count
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void configure(Map props) {
+        super.configure(props);
+        if (!"true".equals(props.get(REPLICA))) current = this;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Connection conn = super.getConnection();
+            inUse.incrementAndGet();
+            return conn;
+        } catch (SQLException ex) {
+            acquireFailures.increment();
+            throw ex;
+        } finally {
+            long took = System.nanoTime() - start;
+            acquireCount.increment();
+            acquireNanos.add(took);
+            long max;
+            while (took > (max = acquireMaxNanos.get()) && !acquireMaxNanos.compareAndSet(max, took)) {
+                // retry until our sample is stored or a larger one won
+            }
+        }
+    }
+
+    @Override
+    public void closeConnection(Connection conn) throws SQLException {
+        try {
+            super.closeConnection(conn);
+        } finally {
+            inUse.decrementAndGet();
+        }
+    }
+
+    public int inUse() {
+        return inUse.get();
+    }
+
+    @Override
+    public void stop() {
+        if (current == this) current = null;
+        super.stop();
+    }
+
+    public static Map<String, Number> metrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        PooledConnectionProvider provider = current;
+        if (provider != null) {
+            try {
+                PooledDataSource ds = (PooledDataSource) provider.unwrap(DataSource.class);
+                m.put("pool_in_use", ds.getNumBusyConnectionsDefaultUser());
+                m.put("pool_idle", ds.getNumIdleConnectionsDefaultUser());
+                m.put("pool_size", ds.getNumConnectionsDefaultUser());
+                m.put("pool_waiters", ds.getNumThreadsAwaitingCheckoutDefaultUser());
+                m.put("pool_statement_cache_size", ds.getStatementCacheNumStatementsDefaultUser());
+            } catch (SQLException | RuntimeException ex) {
+                // pool is shutting down; report only the counters below
+            }
+        }
+        long count = acquireCount.sum();
+        m.put("pool_acquire_count", count);
+        m.put("pool_acquire_failures", acquireFailures.sum());
+        m.put("pool_acquire_avg_ms", count == 0 ? 0.0 : acquireNanos.sum() / (double) count / 1_000_000.0);
+        m.put("pool_acquire_max_ms", acquireMaxNanos.get() / 1_000_000.0);
+        return m;
+    }
+}
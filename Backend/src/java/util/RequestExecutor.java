@@ -0,0 +1,163 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs servlet handlers off the container's request threads. Admission is
+// bounded: at most maxConcurrent handlers running plus queueSize waiting,
+// anything beyond that is refused so the caller can shed load with a 503.
+// Uses one virtual thread per handler when the JVM has them (Java 21+),
+// otherwise a fixed pool of maxConcurrent platform threads. Either way a
+// second semaphore lets only maxConcurrent of them run at once; the rest wait
+// their turn (a virtual thread parks on it), so the database pool sees at
+// most maxConcurrent handlers. schedule() runs deadlines on one timer thread.
+public final class RequestExecutor {
+    private static volatile RequestExecutor instance;
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final Semaphore runSlots;
+    private final ScheduledThreadPoolExecutor timer;
+    private final int capacity;
+    private final long timeoutMillis;
+    private final boolean virtual;
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    private RequestExecutor(int maxConcurrent, int queueSize, long timeoutMillis, boolean preferVirtual) {
+        ExecutorService virtualExecutor = preferVirtual ? newVirtualThreadExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        this.executor = virtual ? virtualExecutor : newPlatformExecutor(maxConcurrent);
+        this.capacity = maxConcurrent + queueSize;
+        this.slots = new Semaphore(capacity);
+        this.runSlots = new Semaphore(maxConcurrent);
+        this.timeoutMillis = timeoutMillis;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "todo-request-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        // most deadlines are cancelled because the handler finished first
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public static synchronized void start(int maxConcurrent, int queueSize, long timeoutMillis, boolean preferVirtual) {
+        if (instance != null) {
+            instance.executor.shutdown();
+            instance.timer.shutdownNow();
+        }
+        instance = new RequestExecutor(maxConcurrent, queueSize, timeoutMillis, preferVirtual);
+    }
+
+    // null when not started; servlets then run on the request thread as before
+    public static RequestExecutor get() {
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        RequestExecutor current = instance;
+        instance = null;
+        if (current != null) {
+            current.timer.shutdownNow();
+            current.executor.shutdown();
+            try {
+                if (!current.executor.awaitTermination(current.timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    current.executor.shutdownNow();
+                }
+            } catch (InterruptedException ex) {
+                current.executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // null when the server is saturated; the task has then not been scheduled.
+    // Cancelling the Future with interruption interrupts a running task; a task
+    // still waiting for its turn runs anyway, so it has to check for itself
+    // whether it is still wanted
+    public Future<?> submit(final Runnable task) {
+        if (!slots.tryAcquire()) {
+            rejected.increment();
+            return null;
+        }
+        try {
+            return executor.submit(() -> {
+                try {
+                    runSlots.acquireUninterruptibly();
+                    running.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        runSlots.release();
+                    }
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // shutting down
+            slots.release();
+            rejected.increment();
+            return null;
+        }
+    }
+
+    public ScheduledFuture<?> schedule(Runnable action, long delayMillis) {
+        return timer.schedule(action, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public Map<String, Number> metrics() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        int active = running.get();
+        int admitted = capacity - slots.availablePermits();
+        m.put("executor_running", active);
+        m.put("executor_queued", Math.max(0, admitted - active));
+        m.put("executor_capacity", capacity);
+        m.put("executor_rejected", rejected.sum());
+        m.put("executor_virtual_threads", virtual ? 1 : 0);
+        return m;
+    }
+
+    private static ExecutorService newPlatformExecutor(int threads) {
+        final AtomicInteger seq = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "todo-request-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        // the semaphore bounds admission, so the queue itself never grows past queueSize
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() looked up reflectively so the code still builds for Java 8
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
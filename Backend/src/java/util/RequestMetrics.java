@@ -0,0 +1,59 @@
+package util;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-endpoint request counters and latency histograms, plus the Hibernate
+// session and JDBC statement timings from SessionMetricsListener. Everything
+// is LongAdder/atomic based; the only map insert happens on the first request
+// to an endpoint.
+public final class RequestMetrics {
+    // guards against unbounded label sets from odd URLs
+    private static final int MAX_ENDPOINTS = 256;
+
+    public static final LatencyHistogram SESSION_OPEN = new LatencyHistogram();
+    public static final LatencyHistogram JDBC_STATEMENT = new LatencyHistogram();
+
+    private static final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    private RequestMetrics() {}
+
+    public static final class Endpoint {
+        public final String method;
+        public final String route;
+        public final LongAdder requests = new LongAdder();
+        public final LongAdder clientErrors = new LongAdder();
+        public final LongAdder serverErrors = new LongAdder();
+        public final LatencyHistogram latency = new LatencyHistogram();
+
+        Endpoint(String method, String route) {
+            this.method = method;
+            this.route = route;
+        }
+    }
+
+    public static void record(String method, String route, int status, long nanos) {
+        Endpoint e = endpoint(method, route);
+        e.requests.increment();
+        if (status >= 500) {
+            e.serverErrors.increment();
+        } else if (status >= 400) {
+            e.clientErrors.increment();
+        }
+        e.latency.record(nanos);
+    }
+
+    public static Collection<Endpoint> endpoints() {
+        return endpoints.values();
+    }
+
+    private static Endpoint endpoint(String method, String route) {
+        String key = method + " " + route;
+        Endpoint e = endpoints.get(key);
+        if (e != null) return e;
+        final String r = endpoints.size() < MAX_ENDPOINTS ? route : "other";
+        return endpoints.computeIfAbsent(method + " " + r, k -> new Endpoint(method, r));
+    }
+}
@@ -0,0 +1,500 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+
+// In-process inverted index over todo titles and descriptions, one shard per
+// user so a search only ever looks at that user's terms and postings.
+// Built once in the background from the todos table, retried with backoff
+// until it succeeds; the servlet write paths call put()/remove() after they
+// commit. Updates arriving during the build are queued and replayed
+// afterwards, so nothing committed meanwhile is missed. The queue holds at
+// most maxPending updates: past that it is dropped and the build starts over,
+// as a fresh scan sees everything the dropped updates would have applied.
+// Query terms must all match (AND); each matches exactly or as a prefix of an
+// indexed term. Ranking is a tf-idf sum with title hits counting three times a
+// description hit and prefix matches counting half of exact ones.
+public final class SearchIndex {
+    private static final Log LOG = Log.get(SearchIndex.class);
+    public static final int MAX_QUERY_TERMS = 8;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final short TITLE_WEIGHT = 3;
+    private static final short DESCRIPTION_WEIGHT = 1;
+    private static final float PREFIX_FACTOR = 0.5f;
+    // a one-letter prefix should not walk the whole dictionary
+    private static final int MAX_PREFIX_EXPANSION = 256;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+    // outcomes of one build attempt
+    private static final int BUILT = 0;
+    private static final int FAILED = 1;
+    private static final int OVERFLOWED = 2;
+
+    private static final ConcurrentMap<Long, Shard> shards = new ConcurrentHashMap<>();
+    private static final Object buildLock = new Object();
+    private static final List<Runnable> pending = new ArrayList<>();
+    private static volatile int maxPending = 10000;
+    private static volatile boolean ready;
+    private static volatile boolean building;
+    // set when pending overflowed during the build under way
+    private static volatile boolean overflowed;
+    private static boolean closed;
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder rebuilds = new LongAdder();
+
+    private SearchIndex() {}
+
+    public static final class Hit {
+        public final long todoId;
+        public final float score;
+
+        Hit(long todoId, float score) {
+            this.todoId = todoId;
+            this.score = score;
+        }
+    }
+
+    public static final class Result {
+        public final List<Hit> hits;
+        public final int matches;
+
+        Result(List<Hit> hits, int matches) {
+            this.hits = hits;
+            this.matches = matches;
+        }
+    }
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    // updates queued during a build before it is abandoned and started over
+    public static void setMaxPending(int max) {
+        maxPending = Math.max(1, max);
+    }
+
+    // builds the index on a daemon thread; searches answer "not ready" until it is done
+    public static void buildAsync() {
+        Thread t = new Thread(SearchIndex::build, "search-index-build");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // returns once the index is ready, retrying a failed build after 1 s,
+    // doubling up to a minute, or when shut down
+    public static void build() {
+        synchronized (buildLock) {
+            if (ready || building) return;
+            building = true;
+            closed = false;
+        }
+        long delay = MIN_RETRY_MILLIS;
+        try {
+            for (;;) {
+                int outcome = attempt();
+                if (outcome == OVERFLOWED) {
+                    // overflowed: start over right away
+                    rebuilds.increment();
+                    LOG.warn("Search index build fell behind by more than {} updates, rebuilding", maxPending);
+                    continue;
+                }
+                if (outcome == BUILT) return;
+                failures.increment();
+                LOG.warn("Search index build failed, retrying in {} ms", delay);
+                synchronized (buildLock) {
+                    if (closed) return;
+                    buildLock.wait(delay);
+                    if (closed) return;
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_MILLIS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (buildLock) {
+                building = false;
+            }
+        }
+    }
+
+    private static int attempt() {
+        synchronized (buildLock) {
+            shards.clear();
+            pending.clear();
+            overflowed = false;
+        }
+        long started = System.currentTimeMillis();
+        int n = 0;
+        try {
+            StatelessSession session = HibernateUtil.getSessionFactory().openStatelessSession();
+            try {
+                ScrollableResults rows = session.getNamedQuery("Todo.searchRows")
+                        .setReadOnly(true).setFetchSize(1000).scroll(ScrollMode.FORWARD_ONLY);
+                try {
+                    while (rows.next()) {
+                        if (overflowed) return OVERFLOWED;
+                        shard((Long) rows.get(1)).put((Long) rows.get(0), (String) rows.get(2), (String) rows.get(3));
+                        n++;
+                    }
+                } finally {
+                    rows.close();
+                }
+            } finally {
+                session.close();
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Search index build failed", ex);
+            return FAILED;
+        }
+        synchronized (buildLock) {
+            if (overflowed) return OVERFLOWED;
+            for (Runnable r : pending) {
+                r.run();
+            }
+            pending.clear();
+            ready = true;
+        }
+        LOG.info("Search index built: {} todos, {} users in {} ms", n, shards.size(), System.currentTimeMillis() - started);
+        return BUILT;
+    }
+
+    // stops a build waiting to retry
+    public static void shutdown() {
+        synchronized (buildLock) {
+            closed = true;
+            buildLock.notifyAll();
+        }
+    }
+
+    public static void put(final Long userId, final long todoId, final String title, final String description) {
+        if (userId == null) return;
+        apply(() -> shard(userId).put(todoId, title, description));
+    }
+
+    public static void remove(final Long userId, final long todoId) {
+        if (userId == null) return;
+        apply(() -> {
+            Shard s = shards.get(userId);
+            if (s != null) s.remove(todoId);
+        });
+    }
+
+    public static Result search(Long userId, String query, int limit) {
+        Shard s = shards.get(userId);
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        if (s == null || terms.isEmpty()) return new Result(new ArrayList<Hit>(), 0);
+        if (terms.size() > MAX_QUERY_TERMS) terms = terms.subList(0, MAX_QUERY_TERMS);
+        return s.search(terms, limit);
+    }
+
+    // {docs, terms, bytes} of one user's shard, null if they have none
+    public static Map<String, Number> shardStats(Long userId) {
+        Shard s = shards.get(userId);
+        return s != null ? s.stats() : null;
+    }
+
+    public static Map<String, Number> metrics() {
+        long docs = 0;
+        long terms = 0;
+        long bytes = 0;
+        long largest = 0;
+        for (Shard s : shards.values()) {
+            Map<String, Number> st = s.stats();
+            docs += st.get("docs").longValue();
+            terms += st.get("terms").longValue();
+            bytes += st.get("bytes").longValue();
+            largest = Math.max(largest, st.get("bytes").longValue());
+        }
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("search_index_ready", ready ? 1 : 0);
+        m.put("search_index_build_failures", failures.sum());
+        m.put("search_index_rebuilds", rebuilds.sum());
+        m.put("search_index_shards", shards.size());
+        m.put("search_index_docs", docs);
+        m.put("search_index_terms", terms);
+        m.put("search_index_bytes", bytes);
+        m.put("search_index_largest_shard_bytes", largest);
+        return m;
+    }
+
+    private static void apply(Runnable update) {
+        if (!ready) {
+            synchronized (buildLock) {
+                if (!ready) {
+                    // already dropped: the rebuild's scan will see this update's commit
+                    if (overflowed) return;
+                    if (pending.size() >= maxPending) {
+                        pending.clear();
+                        overflowed = true;
+                        return;
+                    }
+                    pending.add(update);
+                    return;
+                }
+            }
+        }
+        update.run();
+    }
+
+    private static Shard shard(Long userId) {
+        Shard s = shards.get(userId);
+        if (s == null) {
+            s = new Shard();
+            Shard prev = shards.putIfAbsent(userId, s);
+            if (prev != null) s = prev;
+        }
+        return s;
+    }
+
+    // lower-cased runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) return out;
+        int start = -1;
+        for (int i = 0, n = text.length(); i <= n; i++) {
+            boolean word = i < n && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                String t = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT);
+                out.add(t);
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+    // One user's index. Documents get increasing ordinals; a re-indexed or
+    // removed todo leaves a dead ordinal behind, and the postings are rebuilt
+    // without them once a quarter of the ordinals are dead.
+    private static final class Shard {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final TreeMap<String, Integer> dictionary = new TreeMap<>();
+        private final List<Postings> postings = new ArrayList<>();
+        private final Map<Long, Integer> ordinals = new HashMap<>();
+        private long[] ids = new long[16];
+        // per ordinal: the term ids and weights it was indexed with, kept for compaction
+        private int[][] docTerms = new int[16][];
+        private short[][] docWeights = new short[16][];
+        private int size;
+        private int dead;
+
+        void put(long todoId, String title, String description) {
+            Map<String, Short> weights = new HashMap<>();
+            for (String t : tokenize(title)) {
+                weights.merge(t, TITLE_WEIGHT, (a, b) -> (short) Math.min(Short.MAX_VALUE, a + b));
+            }
+            for (String t : tokenize(description)) {
+                weights.merge(t, DESCRIPTION_WEIGHT, (a, b) -> (short) Math.min(Short.MAX_VALUE, a + b));
+            }
+            lock.writeLock().lock();
+            try {
+                kill(todoId);
+                int ord = size++;
+                if (ord == ids.length) {
+                    int cap = ids.length * 2;
+                    ids = Arrays.copyOf(ids, cap);
+                    docTerms = Arrays.copyOf(docTerms, cap);
+                    docWeights = Arrays.copyOf(docWeights, cap);
+                }
+                ids[ord] = todoId;
+                int[] termIds = new int[weights.size()];
+                short[] w = new short[weights.size()];
+                int i = 0;
+                for (Map.Entry<String, Short> e : weights.entrySet()) {
+                    Integer id = dictionary.get(e.getKey());
+                    if (id == null) {
+                        id = postings.size();
+                        dictionary.put(e.getKey(), id);
+                        postings.add(new Postings());
+                    }
+                    postings.get(id).add(ord, e.getValue());
+                    termIds[i] = id;
+                    w[i++] = e.getValue();
+                }
+                docTerms[ord] = termIds;
+                docWeights[ord] = w;
+                ordinals.put(todoId, ord);
+                compactIfNeeded();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(long todoId) {
+            lock.writeLock().lock();
+            try {
+                kill(todoId);
+                compactIfNeeded();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void kill(long todoId) {
+            Integer old = ordinals.remove(todoId);
+            if (old != null) {
+                ids[old] = -1;
+                docTerms[old] = null;
+                docWeights[old] = null;
+                dead++;
+            }
+        }
+
+        // renumbers the live documents and rebuilds postings and dictionary from their term lists
+        private void compactIfNeeded() {
+            if (dead < 64 || dead * 4 < size) return;
+            int live = size - dead;
+            long[] newIds = new long[Math.max(16, live * 2)];
+            int[][] newTerms = new int[newIds.length][];
+            short[][] newWeights = new short[newIds.length][];
+            int[] newTermId = new int[postings.size()];
+            Arrays.fill(newTermId, -1);
+            List<Postings> newPostings = new ArrayList<>();
+            ordinals.clear();
+            int n = 0;
+            for (int ord = 0; ord < size; ord++) {
+                if (ids[ord] < 0) continue;
+                int[] termIds = docTerms[ord];
+                for (int i = 0; i < termIds.length; i++) {
+                    int old = termIds[i];
+                    if (newTermId[old] < 0) {
+                        newTermId[old] = newPostings.size();
+                        newPostings.add(new Postings());
+                    }
+                    termIds[i] = newTermId[old];
+                    newPostings.get(termIds[i]).add(n, docWeights[ord][i]);
+                }
+                newIds[n] = ids[ord];
+                newTerms[n] = termIds;
+                newWeights[n] = docWeights[ord];
+                ordinals.put(ids[ord], n);
+                n++;
+            }
+            for (Iterator<Map.Entry<String, Integer>> it = dictionary.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Integer> e = it.next();
+                int id = newTermId[e.getValue()];
+                if (id < 0) {
+                    it.remove();
+                } else {
+                    e.setValue(id);
+                }
+            }
+            postings.clear();
+            postings.addAll(newPostings);
+            ids = newIds;
+            docTerms = newTerms;
+            docWeights = newWeights;
+            size = n;
+            dead = 0;
+        }
+
+        Result search(List<String> terms, int limit) {
+            lock.readLock().lock();
+            try {
+                int live = size - dead;
+                float[] score = new float[size];
+                int[] mask = new int[size];
+                for (int q = 0; q < terms.size(); q++) {
+                    String term = terms.get(q);
+                    NavigableMap<String, Integer> matches = dictionary.subMap(term, true, term + Character.MAX_VALUE, false);
+                    int expanded = 0;
+                    for (Map.Entry<String, Integer> e : matches.entrySet()) {
+                        if (expanded++ == MAX_PREFIX_EXPANSION) break;
+                        Postings p = postings.get(e.getValue());
+                        float idf = (float) Math.log(1 + (double) live / Math.max(1, p.size));
+                        float factor = e.getKey().length() == term.length() ? idf : idf * PREFIX_FACTOR;
+                        for (int i = 0; i < p.size; i++) {
+                            int d = p.docs[i];
+                            if (ids[d] < 0) continue;
+                            score[d] += p.weights[i] * factor;
+                            mask[d] |= 1 << q;
+                        }
+                    }
+                }
+                int all = (1 << terms.size()) - 1;
+                PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1,
+                        (a, b) -> a.score != b.score ? Float.compare(a.score, b.score) : Long.compare(a.todoId, b.todoId));
+                int matched = 0;
+                for (int d = 0; d < size; d++) {
+                    if (mask[d] != all) continue;
+                    matched++;
+                    if (top.size() < limit) {
+                        top.add(new Hit(ids[d], score[d]));
+                    } else if (score[d] > top.peek().score || (score[d] == top.peek().score && ids[d] > top.peek().todoId)) {
+                        top.poll();
+                        top.add(new Hit(ids[d], score[d]));
+                    }
+                }
+                List<Hit> hits = new ArrayList<>(top);
+                // best first; newer todos first on equal scores
+                hits.sort((a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Long.compare(b.todoId, a.todoId));
+                return new Result(hits, matched);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Map<String, Number> stats() {
+            lock.readLock().lock();
+            try {
+                long bytes = ids.length * 8L + docTerms.length * 8L + docWeights.length * 8L
+                        + ordinals.size() * 64L;
+                for (int ord = 0; ord < size; ord++) {
+                    if (docTerms[ord] != null) bytes += 32 + docTerms[ord].length * 6L;
+                }
+                long postingEntries = 0;
+                for (Postings p : postings) {
+                    bytes += 48 + p.docs.length * 6L;
+                    postingEntries += p.size;
+                }
+                for (String term : dictionary.keySet()) {
+                    // TreeMap entry, String and its char array, boxed id
+                    bytes += 40 + 40 + term.length() * 2L + 16;
+                }
+                Map<String, Number> m = new LinkedHashMap<>();
+                m.put("docs", size - dead);
+                m.put("dead", dead);
+                m.put("terms", dictionary.size());
+                m.put("postings", postingEntries);
+                m.put("bytes", bytes);
+                return m;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    // ordinals of the documents containing one term, in insertion order, with their weights
+    private static final class Postings {
+        int[] docs = new int[4];
+        short[] weights = new short[4];
+        int size;
+
+        void add(int doc, short weight) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            docs[size] = doc;
+            weights[size++] = weight;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package util;
+
+import org.hibernate.BaseSessionEventListener;
+
+// Registered through hibernate.session.events.auto, so Hibernate creates one per
+// session: times how long the session stays open and each JDBC statement execution.
+public class SessionMetricsListener extends BaseSessionEventListener {
+    private static final long serialVersionUID = 1L;
+
+    private final long openedAt = System.nanoTime();
+    private long statementStart;
+
+    @Override
+    public void jdbcExecuteStatementStart() {
+        statementStart = System.nanoTime();
+    }
+
+    @Override
+    public void jdbcExecuteStatementEnd() {
+        RequestMetrics.JDBC_STATEMENT.record(System.nanoTime() - statementStart);
+    }
+
+    @Override
+    public void jdbcExecuteBatchStart() {
+        statementStart = System.nanoTime();
+    }
+
+    @Override
+    public void jdbcExecuteBatchEnd() {
+        RequestMetrics.JDBC_STATEMENT.record(System.nanoTime() - statementStart);
+    }
+
+    @Override
+    public void end() {
+        RequestMetrics.SESSION_OPEN.record(System.nanoTime() - openedAt);
+    }
+}
@@ -0,0 +1,21 @@
+package util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.hibernate.EmptyInterceptor;
+
+// Replaces hibernate.show_sql, which printed every statement to stdout under
+// the stream lock. Logs a random sample of prepared statements through Log at
+// the rate set by todo.log.sqlSampleRate (0 turns it off).
+public class SqlLogInterceptor extends EmptyInterceptor {
+    private static final long serialVersionUID = 1L;
+    private static final Log LOG = Log.get("sql");
+
+    @Override
+    public String onPrepareStatement(String sql) {
+        double rate = Log.sqlSampleRate();
+        if (rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate)) {
+            LOG.info(sql);
+        }
+        return sql;
+    }
+}
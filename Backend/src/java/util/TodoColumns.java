@@ -0,0 +1,266 @@
+package util;
+
+import entity.TodoView;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+
+// Compact encodings of a todo list for clients that ask for them with Accept.
+// Both are columnar: every field is written for all rows before the next one,
+// ids and user ids as deltas from the previous row, priority as its index in
+// PRIORITIES (what Todo.normalizePriority allows) and completion as a bitset,
+// bit i of byte i/8 for row i. The title is sent once, not again as "text".
+//
+// COLUMNS_JSON is a JSON object with one array per field:
+//   {"count":n,"id":[first,+d,...],"user_id":[...],"priorities":["LOW","MEDIUM","HIGH"],
+//    "priority":[0,1,2,...],"completed":"<base64 bitset>","title":[...],"description":[...]}
+//
+// BINARY is "TDO1" followed by unsigned LEB128 varints:
+//   count, then count zigzag id deltas, count zigzag user id deltas (a missing
+//   user id is encoded as 0), count priority bytes, (count + 7) / 8 bitset
+//   bytes, count titles and count descriptions, each a varint byte length
+//   and UTF-8 bytes.
+public final class TodoColumns {
+    public static final String JSON = "application/json";
+    public static final String COLUMNS_JSON = "application/vnd.todo.columns+json";
+    public static final String BINARY = "application/vnd.todo.binary";
+
+    public static final String[] PRIORITIES = {"LOW", "MEDIUM", "HIGH"};
+    private static final byte[] MAGIC = {'T', 'D', 'O', '1'};
+    private static final int BUFFER_SIZE = BufferPool.BUFFER_SIZE;
+
+    private TodoColumns() {}
+
+    // the media type to answer with: a compact one when the Accept header lists it
+    // with a q-value at least that of application/json, otherwise plain JSON
+    public static String negotiate(String accept) {
+        if (accept == null) return JSON;
+        String best = JSON;
+        double bestQ = 0;
+        double jsonQ = 0;
+        for (String part : accept.split(",")) {
+            String[] tokens = part.split(";");
+            String type = tokens[0].trim().toLowerCase(Locale.ROOT);
+            boolean json = type.equals(JSON);
+            if (!json && !type.equals(BINARY) && !type.equals(COLUMNS_JSON)) continue;
+            double q = 1;
+            for (int i = 1; i < tokens.length; i++) {
+                String p = tokens[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(p.substring(2));
+                    } catch (NumberFormatException ex) {
+                        q = 0;
+                    }
+                }
+            }
+            if (json) {
+                jsonQ = Math.max(jsonQ, q);
+            } else if (q > bestQ) {
+                best = type.equals(BINARY) ? BINARY : COLUMNS_JSON;
+                bestQ = q;
+            }
+        }
+        return bestQ > 0 && bestQ >= jsonQ ? best : JSON;
+    }
+
+    public static int priorityIndex(String priority) {
+        if ("LOW".equals(priority)) return 0;
+        if ("HIGH".equals(priority)) return 2;
+        return 1;
+    }
+
+    public static void writeColumnsJson(List<TodoView> todos, OutputStream out) throws IOException {
+        int n = todos.size();
+        JsonWriter w = JsonWriter.of(out).beginObject().name("count").value(n);
+        w.name("id").beginArray();
+        long prev = 0;
+        for (TodoView t : todos) {
+            long id = t.getId();
+            w.value(id - prev);
+            prev = id;
+        }
+        w.endArray().name("user_id").beginArray();
+        prev = 0;
+        for (TodoView t : todos) {
+            long uid = t.getUserId() != null ? t.getUserId() : 0;
+            w.value(uid - prev);
+            prev = uid;
+        }
+        w.endArray().name("priorities").beginArray();
+        for (String p : PRIORITIES) {
+            w.value(p);
+        }
+        w.endArray().name("priority").beginArray();
+        for (TodoView t : todos) {
+            w.value(priorityIndex(t.getPriority()));
+        }
+        w.endArray().name("completed").value(Base64.getEncoder().encodeToString(completedBits(todos)));
+        w.name("title").beginArray();
+        for (TodoView t : todos) {
+            w.value(t.getTitle() != null ? t.getTitle() : "");
+        }
+        w.endArray().name("description").beginArray();
+        for (TodoView t : todos) {
+            w.value(t.getDescription() != null ? t.getDescription() : "");
+        }
+        w.endArray().endObject().close();
+    }
+
+    public static void writeBinary(List<TodoView> todos, OutputStream out) throws IOException {
+        Binary b = new Binary(out);
+        int n = todos.size();
+        b.bytes(MAGIC, 0, MAGIC.length);
+        b.varint(n);
+        long prev = 0;
+        for (TodoView t : todos) {
+            long id = t.getId();
+            b.zigzag(id - prev);
+            prev = id;
+        }
+        prev = 0;
+        for (TodoView t : todos) {
+            long uid = t.getUserId() != null ? t.getUserId() : 0;
+            b.zigzag(uid - prev);
+            prev = uid;
+        }
+        for (TodoView t : todos) {
+            b.put(priorityIndex(t.getPriority()));
+        }
+        byte[] bits = completedBits(todos);
+        b.bytes(bits, 0, bits.length);
+        for (TodoView t : todos) {
+            b.string(t.getTitle());
+        }
+        for (TodoView t : todos) {
+            b.string(t.getDescription());
+        }
+        try {
+            b.flush();
+        } finally {
+            b.release();
+        }
+    }
+
+    private static byte[] completedBits(List<TodoView> todos) {
+        byte[] bits = new byte[(todos.size() + 7) / 8];
+        int i = 0;
+        for (TodoView t : todos) {
+            if (t.isCompleted()) bits[i >> 3] |= 1 << (i & 7);
+            i++;
+        }
+        return bits;
+    }
+
+    // buffered varint/UTF-8 writer; strings are encoded straight into a buffer
+    // borrowed from BufferPool, as in JsonWriter
+    private static final class Binary {
+        private final OutputStream out;
+        private byte[] buf = BufferPool.borrow();
+        private int pos;
+
+        Binary(OutputStream out) {
+            this.out = out;
+        }
+
+        void release() {
+            BufferPool.release(buf);
+            buf = null;
+        }
+
+        void put(int b) throws IOException {
+            if (pos == BUFFER_SIZE) drain();
+            buf[pos++] = (byte) b;
+        }
+
+        void varint(long v) throws IOException {
+            if (pos + 10 > BUFFER_SIZE) drain();
+            while ((v & ~0x7fL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void zigzag(long v) throws IOException {
+            varint((v << 1) ^ (v >> 63));
+        }
+
+        void bytes(byte[] b, int off, int len) throws IOException {
+            if (pos + len > BUFFER_SIZE) drain();
+            if (len > BUFFER_SIZE) {
+                out.write(b, off, len);
+                return;
+            }
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        }
+
+        // a null string is written like an empty one, as in the JSON format
+        void string(String s) throws IOException {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            int n = s.length();
+            varint(utf8Length(s));
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (pos + 4 > BUFFER_SIZE) drain();
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // a lone surrogate has no UTF-8 form
+                    buf[pos++] = '?';
+                } else {
+                    buf[pos++] = (byte) (0xe0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private static int utf8Length(String s) {
+            int len = 0;
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    len++;
+                } else if (c < 0x800) {
+                    len += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    len++;
+                } else {
+                    len += 3;
+                }
+            }
+            return len;
+        }
+
+        void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        private void drain() throws IOException {
+            if (pos > 0) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+        }
+    }
+}
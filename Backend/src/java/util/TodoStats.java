@@ -0,0 +1,119 @@
+package util;
+
+import entity.Category;
+import entity.Todo;
+import entity.TodoStat;
+import java.util.ArrayList;
+import java.util.List;
+import org.hibernate.Session;
+import org.hibernate.proxy.HibernateProxy;
+
+// Per-user todo counters kept in the todo_stats table. Every todo write adjusts
+// the rows of the buckets it leaves and enters inside its own transaction, so
+// reading a user's statistics is a primary-key range read of a few rows no
+// matter how many todos they have.
+// A user's rows are built once from their todos, the first time statistics are
+// read. Until then writes leave them alone; both sides decide while holding the
+// user's todo_versions row lock, so no write is counted twice or missed.
+public final class TodoStats {
+    public static final String ALL = "all";
+
+    private TodoStats() {}
+
+    // what one todo contributes to its owner's counters
+    public static final class Snapshot {
+        final boolean completed;
+        final String priority;
+        final Long categoryId;
+
+        Snapshot(boolean completed, String priority, Long categoryId) {
+            this.completed = completed;
+            this.priority = priority != null ? priority : "MEDIUM";
+            this.categoryId = categoryId;
+        }
+
+        boolean sameAs(Snapshot o) {
+            return completed == o.completed && priority.equals(o.priority)
+                    && (categoryId == null ? o.categoryId == null : categoryId.equals(o.categoryId));
+        }
+    }
+
+    public static Snapshot of(Todo t) {
+        Category c = t.getCategory();
+        Long categoryId;
+        if (c instanceof HibernateProxy) {
+            // read the id off the proxy instead of initializing it
+            categoryId = (Long) ((HibernateProxy) c).getHibernateLazyInitializer().getIdentifier();
+        } else {
+            categoryId = c != null ? c.getId() : null;
+        }
+        return new Snapshot(t.isCompleted(), t.getPriority(), categoryId);
+    }
+
+    // moves a todo between buckets; before is null for a create, after for a delete.
+    // The caller must hold the user's lock (ChangeVersions.next or lock)
+    public static void changed(Session session, Long userId, Snapshot before, Snapshot after) {
+        if (before != null && after != null && before.sameAs(after)) return;
+        // not built yet: the first read will count this write from the todos table
+        if (session.get(TodoStat.class, new TodoStat.Key(userId, ALL)) == null) return;
+        if (before != null) add(session, userId, before, -1);
+        if (after != null) add(session, userId, after, 1);
+    }
+
+    // the user's rows, building them first if this is the first read
+    @SuppressWarnings("unchecked")
+    public static List<TodoStat> load(Session session, Long userId) {
+        List<TodoStat> rows = list(session, userId);
+        if (!rows.isEmpty()) return rows;
+        ChangeVersions.lock(session, userId);
+        rows = list(session, userId);
+        if (!rows.isEmpty()) return rows;
+
+        List<Object[]> groups = (List<Object[]>) session.getNamedQuery("Todo.statGroupsOfUser")
+                .setParameter("uid", userId).list();
+        // the "all" row is written even for a user without todos: it marks the rows as built
+        session.save(new TodoStat(userId, ALL));
+        for (Object[] g : groups) {
+            Snapshot s = new Snapshot(g[0] != null && (Boolean) g[0], (String) g[1], (Long) g[2]);
+            long n = ((Number) g[3]).longValue();
+            for (String bucket : buckets(s)) {
+                TodoStat row = row(session, userId, bucket);
+                row.setTotal(row.getTotal() + n);
+                if (s.completed) row.setCompleted(row.getCompleted() + n);
+            }
+        }
+        session.flush();
+        return list(session, userId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<TodoStat> list(Session session, Long userId) {
+        return (List<TodoStat>) session.getNamedQuery("TodoStat.ofUser")
+                .setParameter("uid", userId).list();
+    }
+
+    private static void add(Session session, Long userId, Snapshot s, int sign) {
+        for (String bucket : buckets(s)) {
+            TodoStat row = row(session, userId, bucket);
+            row.setTotal(row.getTotal() + sign);
+            if (s.completed) row.setCompleted(row.getCompleted() + sign);
+        }
+    }
+
+    private static TodoStat row(Session session, Long userId, String bucket) {
+        TodoStat row = (TodoStat) session.get(TodoStat.class, new TodoStat.Key(userId, bucket));
+        if (row == null) {
+            row = new TodoStat(userId, bucket);
+            session.save(row);
+        }
+        return row;
+    }
+
+    private static List<String> buckets(Snapshot s) {
+        List<String> b = new ArrayList<>(3);
+        b.add(ALL);
+        b.add("priority:" + s.priority);
+        b.add("category:" + (s.categoryId != null ? s.categoryId.toString() : "none"));
+        return b;
+    }
+}
@@ -0,0 +1,68 @@
+package util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token buckets for many keys (user ids, client addresses) sharing one rate
+// and burst. A bucket is a single AtomicLong holding the nanoTime at which it
+// is full again (the GCRA form of a token bucket): taking a token is a read
+// and a compare-and-set, with no lock and, once the key has a bucket, no
+// allocation. A bucket past that time holds nothing worth keeping, so when
+// the map reaches maxKeys such buckets are swept out; if it is still full,
+// new keys share one overflow bucket rather than going unlimited.
+public final class TokenBuckets {
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int maxKeys;
+    private final ConcurrentMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong overflow;
+    private final AtomicLong nextSweep;
+
+    public TokenBuckets(double perSecond, int burst, int maxKeys) {
+        this.intervalNanos = Math.max(1, (long) (1e9 / perSecond));
+        // burst tokens can be taken at once from a full bucket
+        this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        this.maxKeys = Math.max(1, maxKeys);
+        long now = System.nanoTime();
+        this.overflow = new AtomicLong(now);
+        this.nextSweep = new AtomicLong(now);
+    }
+
+    // 0 when a token was taken, otherwise the nanoseconds until there is one
+    public long take(Object key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) bucket = bucketFor(key, now);
+        for (;;) {
+            long full = bucket.get();
+            long start = full - now > 0 ? full : now;
+            long wait = start - now - toleranceNanos;
+            if (wait > 0) return wait;
+            if (bucket.compareAndSet(full, start + intervalNanos)) return 0;
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private AtomicLong bucketFor(Object key, long now) {
+        if (buckets.size() >= maxKeys && !sweep(now)) return overflow;
+        AtomicLong fresh = new AtomicLong(now);
+        AtomicLong existing = buckets.putIfAbsent(key, fresh);
+        return existing != null ? existing : fresh;
+    }
+
+    // drops full buckets, at most once a second; false while the map stays full.
+    // A request racing with the sweep may still use a dropped bucket, which at
+    // worst lets that key start over with a full one
+    private boolean sweep(long now) {
+        long next = nextSweep.get();
+        if (now - next >= 0 && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL_NANOS)) {
+            buckets.values().removeIf(b -> b.get() - now <= 0);
+        }
+        return buckets.size() < maxKeys;
+    }
+}
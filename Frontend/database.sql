@@ -44,15 +44,50 @@ CREATE TABLE todos (
     user_id BIGINT NOT NULL,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    change_version BIGINT,
     FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE,
     FOREIGN KEY (category_id) REFERENCES categories(id) ON DELETE SET NULL
 );
 
+-- Delta sync: per-user change counter and markers for deleted todos
+CREATE TABLE todo_versions (
+    user_id BIGINT PRIMARY KEY,
+    version BIGINT NOT NULL
+);
+
+CREATE TABLE todo_tombstones (
+    todo_id BIGINT PRIMARY KEY,
+    user_id BIGINT NOT NULL,
+    change_version BIGINT NOT NULL,
+    deleted_at DATETIME
+);
+
+-- Per-user todo counters behind GET /api/todos/stats, built on first read
+CREATE TABLE todo_stats (
+    user_id BIGINT NOT NULL,
+    bucket VARCHAR(40) NOT NULL,
+    total BIGINT NOT NULL DEFAULT 0,
+    completed BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (user_id, bucket)
+);
+
+-- Id allocation for todos (Hibernate pooled table generator, lets the backend batch inserts)
+CREATE TABLE hibernate_sequences (
+    sequence_name VARCHAR(255) NOT NULL PRIMARY KEY,
+    next_val BIGINT
+);
+
 -- Create indexes for better performance
 CREATE INDEX idx_todos_user_id ON todos(user_id);
 CREATE INDEX idx_todos_category_id ON todos(category_id);
 CREATE INDEX idx_todos_due_date ON todos(due_date);
 CREATE INDEX idx_todos_completed ON todos(is_completed);
+CREATE INDEX idx_todos_user_version ON todos(user_id, change_version);
+CREATE INDEX idx_todos_user_completed_created ON todos(user_id, is_completed, created_at);
+CREATE INDEX idx_todos_user_created ON todos(user_id, created_at);
+CREATE INDEX idx_todos_user_priority ON todos(user_id, priority);
+CREATE INDEX idx_todos_user_category ON todos(user_id, category_id);
+CREATE INDEX idx_tombstones_user_version ON todo_tombstones(user_id, change_version);
 CREATE INDEX idx_categories_user_id ON categories(user_id);
 CREATE INDEX idx_users_email ON users(email);
 CREATE INDEX idx_users_username ON users(username);
@@ -72,3 +107,8 @@ INSERT INTO todos (title, description, is_completed, priority, due_date, categor
 ('Buy groceries', 'Weekly grocery shopping', FALSE, 'MEDIUM', '2025-08-30 18:00:00', 3, 2),
 ('Exercise', 'Go to gym for 1 hour', TRUE, 'LOW', NULL, 2, 1),
 ('Read book', 'Read chapter 5 of the novel', FALSE, 'LOW', '2025-09-05 20:00:00', 2, 1);
+
+-- Start todo id allocation above the existing rows. The generator hands out
+-- blocks of 50 ending at next_val, so it must be at least MAX(id) + 51.
+INSERT INTO hibernate_sequences (sequence_name, next_val)
+SELECT 'todos', COALESCE(MAX(id), 0) + 51 FROM todos;
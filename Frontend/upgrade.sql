@@ -0,0 +1,88 @@
+-- Todo Application Database Upgrade
+-- Brings a todo_app database created from an older database.sql up to the
+-- current schema. Every step checks first, so the script can be run again.
+-- Stop the backend before running it: the id seed at the end must see the
+-- final MAX(id).
+--
+--   mysql -u root -p todo_app < Frontend/upgrade.sql
+
+USE todo_app;
+
+-- MySQL has no ADD COLUMN / CREATE INDEX ... IF NOT EXISTS, so both go
+-- through information_schema
+DROP PROCEDURE IF EXISTS upgrade_add_column;
+DROP PROCEDURE IF EXISTS upgrade_add_index;
+
+DELIMITER //
+
+CREATE PROCEDURE upgrade_add_column(IN tbl VARCHAR(64), IN col VARCHAR(64), IN def VARCHAR(255))
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+                   WHERE table_schema = DATABASE() AND table_name = tbl AND column_name = col) THEN
+        SET @ddl = CONCAT('ALTER TABLE ', tbl, ' ADD COLUMN ', col, ' ', def);
+        PREPARE stmt FROM @ddl;
+        EXECUTE stmt;
+        DEALLOCATE PREPARE stmt;
+    END IF;
+END //
+
+CREATE PROCEDURE upgrade_add_index(IN tbl VARCHAR(64), IN idx VARCHAR(64), IN cols VARCHAR(255))
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM information_schema.statistics
+                   WHERE table_schema = DATABASE() AND table_name = tbl AND index_name = idx) THEN
+        SET @ddl = CONCAT('CREATE INDEX ', idx, ' ON ', tbl, '(', cols, ')');
+        PREPARE stmt FROM @ddl;
+        EXECUTE stmt;
+        DEALLOCATE PREPARE stmt;
+    END IF;
+END //
+
+DELIMITER ;
+
+-- Delta sync: change version of each todo (NULL for rows older than the upgrade)
+CALL upgrade_add_column('todos', 'change_version', 'BIGINT');
+
+CREATE TABLE IF NOT EXISTS todo_versions (
+    user_id BIGINT PRIMARY KEY,
+    version BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS todo_tombstones (
+    todo_id BIGINT PRIMARY KEY,
+    user_id BIGINT NOT NULL,
+    change_version BIGINT NOT NULL,
+    deleted_at DATETIME
+);
+
+-- Per-user todo counters behind GET /api/todos/stats, built on first read
+CREATE TABLE IF NOT EXISTS todo_stats (
+    user_id BIGINT NOT NULL,
+    bucket VARCHAR(40) NOT NULL,
+    total BIGINT NOT NULL DEFAULT 0,
+    completed BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (user_id, bucket)
+);
+
+-- Id allocation for todos (Hibernate pooled table generator)
+CREATE TABLE IF NOT EXISTS hibernate_sequences (
+    sequence_name VARCHAR(255) NOT NULL PRIMARY KEY,
+    next_val BIGINT
+);
+
+-- Composite indexes for the SQL filters, sorts and delta sync
+CALL upgrade_add_index('todos', 'idx_todos_user_version', 'user_id, change_version');
+CALL upgrade_add_index('todos', 'idx_todos_user_completed_created', 'user_id, is_completed, created_at');
+CALL upgrade_add_index('todos', 'idx_todos_user_created', 'user_id, created_at');
+CALL upgrade_add_index('todos', 'idx_todos_user_priority', 'user_id, priority');
+CALL upgrade_add_index('todos', 'idx_todos_user_category', 'user_id, category_id');
+CALL upgrade_add_index('todo_tombstones', 'idx_tombstones_user_version', 'user_id, change_version');
+
+DROP PROCEDURE upgrade_add_column;
+DROP PROCEDURE upgrade_add_index;
+
+-- Start todo id allocation above the existing rows. The generator hands out
+-- blocks of 50 ending at next_val, so it must be at least MAX(id) + 51; a
+-- seed that is already higher is kept.
+INSERT INTO hibernate_sequences (sequence_name, next_val)
+SELECT 'todos', COALESCE(MAX(id), 0) + 51 FROM todos
+ON DUPLICATE KEY UPDATE next_val = GREATEST(next_val, VALUES(next_val));